@@ -0,0 +1,75 @@
+package app.hypi.fn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-invocation work that doesn't depend on FCM: reading arguments, dispatching an action and translating messages.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InputBenchmark {
+  private Main main;
+  private Map<String, Object> dispatchInput;
+  private Map<String, Object> pushMessage;
+  private Map<String, Object> templatedMessage;
+  private Map<String, Object> vars;
+
+  @Setup
+  public void setup(Stub stub) {
+    main = new Main();
+    dispatchInput = stub.input(Map.of("action", "throttle-stats"));
+    pushMessage = Stub.message();
+    templatedMessage = Map.of(
+        "data", Map.of("new_msg_id", "${msg}", "room", "lobby"),
+        "notification", Map.of("title", "Hello world", "body", "${body}"),
+        "android", Stub.message().get("android"),
+        "apns", Stub.message().get("apns"),
+        "webpush", Stub.message().get("webpush")
+    );
+    vars = Map.of("msg", "msg1", "body", "Hello here");
+  }
+
+  @Benchmark
+  public String getStrInputPlain() {
+    return Main.getStrInput(dispatchInput, "args", "action", null);
+  }
+
+  @Benchmark
+  public String getStrInputDotted() {
+    return Main.getStrInput(dispatchInput, "env", "hypi.token", null);
+  }
+
+  /**
+   * Argument parsing and the Firebase app lookup, with an action that doesn't call FCM.
+   */
+  @Benchmark
+  public Object dispatch() throws Exception {
+    return main.invoke(dispatchInput);
+  }
+
+  @Benchmark
+  public Object buildMessage() {
+    return MessageTemplate.compile(pushMessage).toMessage(Map.of()).setToken("bench-device").build();
+  }
+
+  @Benchmark
+  public Object buildFromTemplate() {
+    return MessageTemplate.cached(templatedMessage).toMessage(vars).setToken("bench-device").build();
+  }
+}
@@ -0,0 +1,99 @@
+package app.hypi.fn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * End to end sends against the {@link StubServer}. Each operation starts {@code concurrency} invocations through
+ * {@link Main#invokeAsync(Map)} and waits for all of them, so throughput in invocations is ops/s times concurrency.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SendBenchmark {
+  private final AtomicLong ids = new AtomicLong();
+  @Param({"1", "16", "64"})
+  public int concurrency;
+  private Main main;
+  private Stub stub;
+  private Map<String, Object> single;
+  private Map<String, Object> multicast;
+  private Map<String, Object> topic;
+  private Map<String, Object> subscribe;
+
+  @Setup
+  public void setup(Stub stub) throws Exception {
+    this.stub = stub;
+    main = new Main();
+    single = stub.input(Map.of("action", "send", "token", "bench-device", "message", Stub.message()));
+    multicast = stub.input(Map.of("action", "send-multiple", "tokens", Stub.tokens(1000), "message", Stub.message()));
+    topic = stub.input(Map.of("action", "send-to-topic", "topic", "lobby", "message", Stub.message()));
+    subscribe = stub.input(Map.of("action", "subscribe", "topic", "lobby", "tokens", Stub.tokens(100)));
+    //Initialize the Firebase app and fetch its access token outside the measurement
+    main.invoke(single);
+  }
+
+  @Benchmark
+  public void send() {
+    run(() -> single);
+  }
+
+  /**
+   * 1000 tokens per invocation, two multicast chunks.
+   */
+  @Benchmark
+  public void sendMultiple() {
+    run(() -> multicast);
+  }
+
+  @Benchmark
+  public void sendToTopic() {
+    run(() -> topic);
+  }
+
+  @Benchmark
+  public void subscribe() {
+    run(() -> subscribe);
+  }
+
+  /**
+   * Sends where the token is looked up in Hypi, each with a new ID so the lookup isn't served from the cache.
+   */
+  @Benchmark
+  public void sendResolvingToken() {
+    run(() -> {
+      Map<String, Object> args = new HashMap<>();
+      args.put("action", "send");
+      args.put("message", Stub.message());
+      args.put("token_src_type", "Account");
+      args.put("token_src_field", "fcmToken");
+      args.put("token_src_id", "account-" + ids.incrementAndGet());
+      return stub.input(args);
+    });
+  }
+
+  private void run(Supplier<Map<String, Object>> input) {
+    CompletableFuture<?>[] calls = new CompletableFuture<?>[concurrency];
+    for (int i = 0; i < concurrency; i++) calls[i] = main.invokeAsync(input.get());
+    CompletableFuture.allOf(calls).join();
+  }
+}
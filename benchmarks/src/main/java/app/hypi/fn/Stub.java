@@ -0,0 +1,69 @@
+package app.hypi.fn;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Starts the {@link StubServer} and points the function at it. This must happen before anything else touches
+ * {@link Main}, its shared state reads HYPI_API_URL when the class is initialized.
+ * Set -Dstub.latencyMs to simulate network latency to Google and Hypi.
+ */
+@State(Scope.Benchmark)
+public class Stub {
+  StubServer server;
+  String serviceAccount;
+
+  @Setup(Level.Trial)
+  public void start() throws Exception {
+    server = new StubServer(Long.getLong("stub.latencyMs", 0));
+    System.setProperty("HYPI_API_URL", server.graphqlUrl());
+    //Applied on top of the FCM_HTTP_* settings, only the transport is replaced
+    Main.apps.customizeOptions(options -> options.setHttpTransport(server.transport()));
+    serviceAccount = server.serviceAccountJson();
+  }
+
+  @TearDown(Level.Trial)
+  public void stop() {
+    server.close();
+  }
+
+  /**
+   * @return an invocation input in the shape the Fenrir runtime passes to {@link Main#invoke(Map)}
+   */
+  Map<String, Object> input(Map<String, Object> args) {
+    Map<String, Object> env = new HashMap<>();
+    env.put("FCM_SVC_ACC_JSON", serviceAccount);
+    env.put("hypi", Map.of("token", "bench-token", "domain", "bench.apps.hypi.app"));
+    return Map.of("env", env, "args", args);
+  }
+
+  static Map<String, Object> message() {
+    return Map.of(
+        "data", Map.of("new_msg_id", "msg1", "room", "lobby"),
+        "notification", Map.of("title", "Hello world", "body", "Hello here"),
+        "android", Map.of(
+            "priority", "high",
+            "ttl", "3600",
+            "notification", Map.of("channelId", "chat", "sound", "default", "tag", "lobby")
+        ),
+        "apns", Map.of(
+            "headers", Map.of("apns-priority", "10"),
+            "payload", Map.of("alert", "Hello here", "badge", 1, "sound", "default")
+        ),
+        "webpush", Map.of("notification", Map.of("body", "Hello here", "icon", "https://example.com/icon.png"))
+    );
+  }
+
+  static List<String> tokens(int count) {
+    String[] tokens = new String[count];
+    for (int i = 0; i < count; i++) tokens[i] = "bench-device-" + i;
+    return List.of(tokens);
+  }
+}
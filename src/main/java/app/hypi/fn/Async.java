@@ -0,0 +1,99 @@
+package app.hypi.fn;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.String.format;
+
+/**
+ * Helpers for bridging the future types used by firebase-admin and the Hypi HTTP client into {@link CompletableFuture}.
+ */
+final class Async {
+  //Only used for futures that can't notify on completion, waiting on them is the only option. Bounded so a slow
+  //backend can't grow a thread per request, futures over the limit wait in the queue for a thread
+  private static final ExecutorService blockingBridge = boundedPool("fcm-future-bridge", Settings.integer("FCM_FUTURE_BRIDGE_THREADS", 16));
+
+  private Async() {
+  }
+
+  static <T> CompletableFuture<T> toCompletable(ApiFuture<T> future) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    ApiFutures.addCallback(future, new ApiFutureCallback<>() {
+      @Override
+      public void onFailure(Throwable t) {
+        result.completeExceptionally(t);
+      }
+
+      @Override
+      public void onSuccess(T value) {
+        result.complete(value);
+      }
+    }, MoreExecutors.directExecutor());
+    return result;
+  }
+
+  static <T> CompletableFuture<T> toCompletable(Future<T> future) {
+    if (future instanceof CompletableFuture<T> completable) return completable;
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CompletionException(e);
+      } catch (ExecutionException e) {
+        throw new CompletionException(e.getCause());
+      }
+    }, blockingBridge);
+  }
+
+  /**
+   * @return a pool of at most {@code threads} named daemon threads, idle threads are stopped after a minute
+   */
+  static ExecutorService boundedPool(String name, int threads) {
+    if (threads < 1) throw new IllegalArgumentException(format("%s needs at least 1 thread but was given %d", name, threads));
+    AtomicInteger count = new AtomicInteger();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+      Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * @return the exception that caused the failure, without the wrappers added by {@link CompletableFuture}
+   */
+  static Throwable unwrap(Throwable t) {
+    while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+      t = t.getCause();
+    }
+    return t;
+  }
+
+  /**
+   * Wait for the future, rethrowing the exception it failed with rather than the {@link CompletionException} wrapper.
+   */
+  static <T> T await(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwable cause = unwrap(e);
+      if (cause instanceof RuntimeException re) throw re;
+      if (cause instanceof Error err) throw err;
+      throw new RuntimeException(cause);
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package app.hypi.fn;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Bounds how many asynchronous operations are in flight without parking a thread per waiting operation.
+ * Operations over the limit are queued and started, in order, as earlier ones complete.
+ * <p>
+ * Queued operations are started in a loop by one releasing thread at a time, so operations that complete as soon as
+ * they are started don't start the next one from inside their own completion and grow the stack.
+ */
+class AsyncLimiter {
+  private final Queue<Runnable> waiting = new ArrayDeque<>();
+  //Operations that have been given a permit but not started yet
+  private final Queue<Runnable> ready = new ArrayDeque<>();
+  private final int limit;
+  private int inFlight;
+  private boolean starting;
+
+  AsyncLimiter(int limit) {
+    if (limit < 1) throw new IllegalArgumentException("Limit must be at least 1");
+    this.limit = limit;
+  }
+
+  <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> operation) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    Runnable start = () -> {
+      CompletableFuture<T> running;
+      try {
+        running = operation.get();
+      } catch (Throwable e) {
+        running = CompletableFuture.failedFuture(e);
+      }
+      running.whenComplete((value, err) -> {
+        release();
+        if (err != null) result.completeExceptionally(err);
+        else result.complete(value);
+      });
+    };
+    synchronized (this) {
+      if (inFlight >= limit) {
+        waiting.add(start);
+        return result;
+      }
+      inFlight++;
+    }
+    start.run();
+    return result;
+  }
+
+  private void release() {
+    synchronized (this) {
+      Runnable next = waiting.poll();
+      if (next == null) {
+        inFlight--;
+        return;
+      }
+      //The permit passes straight to the next operation, the thread already starting operations will start it
+      ready.add(next);
+      if (starting) return;
+      starting = true;
+    }
+    while (true) {
+      Runnable next;
+      synchronized (this) {
+        next = ready.poll();
+        if (next == null) {
+          starting = false;
+          return;
+        }
+      }
+      next.run();
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package app.hypi.fn;
+
+/**
+ * The outcome of sending to every token matched by a Hypi query. Only counts are kept, an audience can be millions of
+ * tokens, tokens FCM reported as unregistered are remembered and skipped on later sends as for {@code send-multiple}.
+ */
+public class AudienceResult {
+  private final long tokenCount;
+  private final long successCount;
+  private final long deadCount;
+  private final int pageCount;
+
+  AudienceResult(long tokenCount, long successCount, long deadCount, int pageCount) {
+    this.tokenCount = tokenCount;
+    this.successCount = successCount;
+    this.deadCount = deadCount;
+    this.pageCount = pageCount;
+  }
+
+  public long getTokenCount() {
+    return tokenCount;
+  }
+
+  public long getSuccessCount() {
+    return successCount;
+  }
+
+  public long getFailureCount() {
+    return tokenCount - successCount;
+  }
+
+  /**
+   * @return failed tokens that FCM reported as unregistered or invalid, now or on an earlier send
+   */
+  public long getDeadCount() {
+    return deadCount;
+  }
+
+  /**
+   * @return how many pages were read from Hypi
+   */
+  public int getPageCount() {
+    return pageCount;
+  }
+}
@@ -0,0 +1,168 @@
+package app.hypi.fn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import static java.lang.String.format;
+
+/**
+ * Streams the tokens of a Hypi query into multicast chunks. Tokens are collected into chunks as pages arrive, so the
+ * first chunk is sent as soon as enough tokens have been read. The next page is only requested while fewer than
+ * {@code maxInFlight} chunks are being sent, so at most one page and {@code maxInFlight} chunks of tokens are held
+ * however large the audience is.
+ */
+class AudienceSend {
+  private final Function<String, CompletableFuture<TokenResolver.TokenPage>> fetch;
+  private final Function<List<String>, CompletableFuture<List<MulticastResult.TokenResponse>>> send;
+  private final int chunkSize;
+  private final int maxInFlight;
+  private final CompletableFuture<AudienceResult> result = new CompletableFuture<>();
+  private List<String> buffer = new ArrayList<>();
+  private int inFlight;
+  private boolean fetching;
+  //The cursor to continue from once a chunk completes, when reading paused for backpressure
+  private String paused;
+  private boolean exhausted;
+  private Throwable failure;
+  private long tokens;
+  private long succeeded;
+  private long dead;
+  private int pages;
+
+  /**
+   * @param fetch reads the page after the given cursor, null for the first page
+   * @param send  sends one chunk and completes with a response for every token, in order
+   */
+  AudienceSend(
+      Function<String, CompletableFuture<TokenResolver.TokenPage>> fetch,
+      Function<List<String>, CompletableFuture<List<MulticastResult.TokenResponse>>> send,
+      int chunkSize,
+      int maxInFlight
+  ) {
+    if (maxInFlight < 1) throw new IllegalArgumentException("At least one chunk must be allowed in flight");
+    this.fetch = fetch;
+    this.send = send;
+    this.chunkSize = chunkSize;
+    this.maxInFlight = maxInFlight;
+  }
+
+  CompletableFuture<AudienceResult> start() {
+    synchronized (this) {
+      fetching = true;
+    }
+    fetch(null);
+    return result;
+  }
+
+  private void fetch(String cursor) {
+    CompletableFuture<TokenResolver.TokenPage> page;
+    try {
+      page = fetch.apply(cursor);
+    } catch (RuntimeException e) {
+      page = CompletableFuture.failedFuture(e);
+    }
+    page.whenComplete((found, err) -> {
+      if (err != null) onFetchFailed(Async.unwrap(err));
+      else onPage(found);
+    });
+  }
+
+  private void onPage(TokenResolver.TokenPage page) {
+    List<List<String>> chunks = new ArrayList<>();
+    String next = null;
+    synchronized (this) {
+      fetching = false;
+      pages++;
+      //A chunk failed with an error that isn't FCM's while this page was read, the rest of the audience isn't sent
+      if (failure != null) {
+        page = new TokenResolver.TokenPage(List.of(), null);
+        buffer.clear();
+      }
+      for (String token : page.tokens()) {
+        buffer.add(token);
+        if (buffer.size() == chunkSize) {
+          chunks.add(buffer);
+          buffer = new ArrayList<>();
+        }
+      }
+      if (page.next() == null) {
+        exhausted = true;
+        if (!buffer.isEmpty()) chunks.add(buffer);
+        buffer = null;
+      }
+      inFlight += chunks.size();
+      if (!exhausted) {
+        if (inFlight < maxInFlight) {
+          fetching = true;
+          next = page.next();
+        } else {
+          paused = page.next();
+        }
+      }
+    }
+    for (List<String> chunk : chunks) send(chunk);
+    if (next != null) fetch(next);
+    else completeIfDone();
+  }
+
+  private void send(List<String> chunk) {
+    CompletableFuture<List<MulticastResult.TokenResponse>> sent;
+    try {
+      sent = send.apply(chunk);
+    } catch (RuntimeException e) {
+      sent = CompletableFuture.failedFuture(e);
+    }
+    sent.whenComplete((responses, err) -> {
+      String next = null;
+      synchronized (this) {
+        inFlight--;
+        tokens += chunk.size();
+        if (err != null) {
+          if (failure == null) failure = Async.unwrap(err);
+        } else {
+          for (MulticastResult.TokenResponse response : responses) {
+            if (response.isSuccessful()) succeeded++;
+            else if (response.isDead()) dead++;
+          }
+        }
+        if (paused != null && failure == null && inFlight < maxInFlight) {
+          next = paused;
+          paused = null;
+          fetching = true;
+        }
+      }
+      if (next != null) fetch(next);
+      else completeIfDone();
+    });
+  }
+
+  private void onFetchFailed(Throwable err) {
+    synchronized (this) {
+      fetching = false;
+      exhausted = true;
+      if (failure == null) failure = err;
+    }
+    completeIfDone();
+  }
+
+  private void completeIfDone() {
+    Throwable err;
+    AudienceResult done;
+    synchronized (this) {
+      if (!exhausted && failure == null || fetching || inFlight > 0) return;
+      err = failure;
+      done = new AudienceResult(tokens, succeeded, dead, pages);
+    }
+    if (err == null) {
+      result.complete(done);
+    } else {
+      //Chunks already sent can't be taken back, say how far the send got
+      result.completeExceptionally(new IllegalStateException(format(
+          "Audience send stopped after sending to %d tokens, %d successfully: %s",
+          done.getTokenCount(), done.getSuccessCount(), err.getMessage()
+      ), err));
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package app.hypi.fn;
+
+import com.google.firebase.messaging.MessagingErrorCode;
+
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * Remembers tokens FCM reported as no longer valid so they can be skipped instead of sent to again.
+ * <p>
+ * Tokens are stored as 64-bit fingerprints in a fixed size open addressed table, about 12 bytes per token however
+ * long the token is. Entries expire after the TTL, a device that re-registers with the same token is sent to again
+ * after that. When the probed slots are all taken the entry closest to expiry is replaced, so the table never grows.
+ */
+class DeadTokens {
+  private static final int PROBES = 8;
+  private final long[] fingerprints;
+  //Expiry in seconds since the table was created, 0 for an empty slot
+  private final int[] expiries;
+  private final int mask;
+  private final long ttlSeconds;
+  private final long createdAt = System.nanoTime();
+
+  DeadTokens() {
+    this(Settings.integer("FCM_DEAD_TOKEN_CAPACITY", 16_384), Duration.ofHours(Settings.number("FCM_DEAD_TOKEN_TTL_HOURS", 24)));
+  }
+
+  DeadTokens(int capacity, Duration ttl) {
+    int slots = Integer.highestOneBit(Math.max(PROBES, capacity - 1)) << 1;
+    this.fingerprints = new long[slots];
+    this.expiries = new int[slots];
+    this.mask = slots - 1;
+    this.ttlSeconds = ttl.toSeconds();
+  }
+
+  /**
+   * @return true if FCM's error means the token itself is unusable, as opposed to the message or the project
+   */
+  static boolean isDeadTokenError(MessagingErrorCode code, String reason) {
+    if (code == MessagingErrorCode.UNREGISTERED) return true;
+    //INVALID_ARGUMENT is also used for invalid messages, only the token variant says so
+    return code == MessagingErrorCode.INVALID_ARGUMENT && reason != null && reason.toLowerCase(Locale.ROOT).contains("registration token");
+  }
+
+  synchronized void add(String token) {
+    long fingerprint = fingerprint(token);
+    int now = now();
+    int expiry = (int) Math.min(Integer.MAX_VALUE, now + ttlSeconds);
+    int start = (int) fingerprint & mask;
+    int victim = start;
+    for (int i = 0; i < PROBES; i++) {
+      int slot = (start + i) & mask;
+      if (fingerprints[slot] == fingerprint || expiries[slot] <= now) {
+        fingerprints[slot] = fingerprint;
+        expiries[slot] = expiry;
+        return;
+      }
+      if (expiries[slot] < expiries[victim]) victim = slot;
+    }
+    fingerprints[victim] = fingerprint;
+    expiries[victim] = expiry;
+  }
+
+  synchronized boolean contains(String token) {
+    long fingerprint = fingerprint(token);
+    int now = now();
+    int start = (int) fingerprint & mask;
+    for (int i = 0; i < PROBES; i++) {
+      int slot = (start + i) & mask;
+      if (fingerprints[slot] == fingerprint && expiries[slot] > now) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return how many tokens are remembered, this scans the table
+   */
+  synchronized int size() {
+    int now = now();
+    int live = 0;
+    for (int expiry : expiries) {
+      if (expiry > now) live++;
+    }
+    return live;
+  }
+
+  //Seconds since creation, starting at 1 so an expiry of 0 always means empty
+  private int now() {
+    return (int) ((System.nanoTime() - createdAt) / 1_000_000_000L) + 1;
+  }
+
+  /**
+   * 64-bit FNV-1a, finished with the MurmurHash3 mixer so the low bits used for the slot are well distributed.
+   */
+  static long fingerprint(String token) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < token.length(); i++) {
+      h ^= token.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
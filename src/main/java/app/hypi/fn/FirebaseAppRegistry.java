@@ -0,0 +1,371 @@
+package app.hypi.fn;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseOptions;
+import com.google.firebase.ImplFirebaseTrampolines;
+import com.google.firebase.messaging.FirebaseMessaging;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Keeps one {@link FirebaseApp} per service account.
+ * Apps are keyed by a SHA-256 digest of the service account JSON so the credentials are only parsed on a miss.
+ * The registry is bounded, the least recently used app is evicted when it is full and apps idle for longer than the
+ * idle timeout are evicted by a background sweep, run for every registry by one shared thread until it is closed.
+ * <p>
+ * Callers hold a {@link Lease} for as long as they use an app. An evicted app is no longer handed out but is only
+ * deleted once the last lease on it is closed, so calls that are still running aren't cut off.
+ */
+class FirebaseAppRegistry implements AutoCloseable {
+  private static final Logger log = LoggerFactory.getLogger(FirebaseAppRegistry.class);
+  private static final String APP_NAME_PREFIX = "hypi-fcm-fn-";
+  private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "fcm-app-registry-sweeper");
+    t.setDaemon(true);
+    return t;
+  });
+  private final Map<String, Entry> apps = new ConcurrentHashMap<>();
+  //The same entries by their FirebaseMessaging, which doesn't override equals so this is by identity
+  private final Map<FirebaseMessaging, Entry> byMessaging = new ConcurrentHashMap<>();
+  //Apps the caller created, see entryOf(FirebaseMessaging)
+  private final Map<FirebaseMessaging, Entry> unmanaged = Collections.synchronizedMap(new WeakHashMap<>());
+  private final List<Consumer<Entry>> initializationListeners = new CopyOnWriteArrayList<>();
+  private final List<Consumer<Entry>> evictionListeners = new CopyOnWriteArrayList<>();
+  //An evicted app can still be in use when the same service account is seen again, so every app gets a new name
+  private final AtomicLong generation = new AtomicLong();
+  private final int maxSize;
+  private final long idleTimeoutNanos;
+  private final ScheduledFuture<?> sweep;
+  private volatile UnaryOperator<FirebaseOptions.Builder> optionsCustomizer = UnaryOperator.identity();
+
+  FirebaseAppRegistry() {
+    this(
+        Settings.integer("FCM_APP_REGISTRY_SIZE", 64),
+        Duration.ofSeconds(Settings.number("FCM_APP_IDLE_TIMEOUT_SECONDS", 1800))
+    );
+    customizeOptions(httpOptions());
+  }
+
+  FirebaseAppRegistry(int maxSize, Duration idleTimeout) {
+    if (maxSize < 1) throw new IllegalArgumentException("Registry size must be at least 1");
+    this.maxSize = maxSize;
+    this.idleTimeoutNanos = idleTimeout.toNanos();
+    long sweepEvery = Math.max(1, Math.min(idleTimeout.toSeconds() / 2, 60));
+    this.sweep = sweeper.scheduleWithFixedDelay(this::evictIdle, sweepEvery, sweepEvery, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Lease the app for the given service account, initializing it if this is the first time it is seen.
+   * The app isn't deleted before the lease is closed.
+   */
+  Lease acquire(String svcAccJson) {
+    String key = digest(svcAccJson);
+    while (true) {
+      Entry entry = apps.get(key);
+      if (entry == null) {
+        //Parsed before computeIfAbsent, which blocks other service accounts that hash to the same bin while it runs
+        FirebaseOptions options = options(svcAccJson);
+        boolean[] created = {false};
+        entry = apps.computeIfAbsent(key, k -> {
+          created[0] = true;
+          return new Entry(k, FirebaseApp.initializeApp(options, APP_NAME_PREFIX + k + "-" + generation.incrementAndGet()));
+        });
+        //Outside computeIfAbsent so listeners can do slow work without blocking other lookups
+        if (created[0]) {
+          byMessaging.put(entry.messaging, entry);
+          prewarm(entry.app);
+          notify(initializationListeners, entry);
+        }
+      }
+      //Lost a race with eviction, the next lookup finds or creates the replacement
+      if (!entry.retain()) continue;
+      entry.lastAccess = System.nanoTime();
+      evictOverflow();
+      return new Lease(entry);
+    }
+  }
+
+  /**
+   * @return the registry's entry for an app, or for an app the caller created, one that lives as long as the app's
+   * {@link FirebaseMessaging} instance and is never evicted
+   */
+  Entry entryOf(FirebaseMessaging messaging) {
+    Entry entry = byMessaging.get(messaging);
+    if (entry == null) entry = unmanaged.get(messaging);
+    return entry != null ? entry : unmanaged.computeIfAbsent(messaging, m -> new Entry(null, null, m));
+  }
+
+  /**
+   * Register a callback that is invoked once with each app after it is initialized, e.g. to resume work left from an earlier process.
+   */
+  void onInitialization(Consumer<Entry> listener) {
+    initializationListeners.add(listener);
+  }
+
+  /**
+   * Register a callback that is invoked with each app when it is evicted, so state kept per app can be dropped.
+   * Leases taken before the eviction may still be using the app.
+   */
+  void onEviction(Consumer<Entry> listener) {
+    evictionListeners.add(listener);
+  }
+
+  /**
+   * Adjust the options of apps initialized from now on, e.g. to send FCM requests through a different transport.
+   * The customizer runs after the ones added before it, so it only overrides the options it sets.
+   */
+  synchronized void customizeOptions(UnaryOperator<FirebaseOptions.Builder> customizer) {
+    UnaryOperator<FirebaseOptions.Builder> before = optionsCustomizer;
+    this.optionsCustomizer = options -> customizer.apply(before.apply(options));
+  }
+
+  /**
+   * The HTTP settings from the environment. FCM_HTTP_TRANSPORT=http2 sends every app's FCM calls through one shared
+   * {@link Http2Transport}, the default is firebase-admin's own transport, which is also a single shared instance.
+   */
+  static UnaryOperator<FirebaseOptions.Builder> httpOptions() {
+    int connectTimeout = Settings.integer("FCM_HTTP_CONNECT_TIMEOUT_MS", -1);
+    int readTimeout = Settings.integer("FCM_HTTP_READ_TIMEOUT_MS", -1);
+    String name = Settings.str("FCM_HTTP_TRANSPORT", "default");
+    HttpTransport transport = switch (name) {
+      case "http2" -> new Http2Transport(Duration.ofMillis(connectTimeout > 0 ? connectTimeout : 10_000));
+      case "default" -> null;
+      default -> throw new IllegalStateException(format("FCM_HTTP_TRANSPORT must be one of [http2,default] but was %s", name));
+    };
+    log.info("Using the {} HTTP transport for FCM", name);
+    return options -> {
+      if (transport != null) options.setHttpTransport(transport);
+      //Otherwise firebase-admin's defaults apply
+      if (connectTimeout >= 0) options.setConnectTimeout(connectTimeout);
+      if (readTimeout >= 0) options.setReadTimeout(readTimeout);
+      return options;
+    };
+  }
+
+  int size() {
+    return apps.size();
+  }
+
+  /**
+   * Stop the idle sweep and evict every app, each is deleted once its last lease is closed.
+   */
+  @Override
+  public void close() {
+    sweep.cancel(false);
+    apps.values().forEach(this::evict);
+  }
+
+  private FirebaseOptions options(String svcAccJson) {
+    GoogleCredentials credentials;
+    try {
+      credentials = GoogleCredentials.fromStream(new ByteArrayInputStream(svcAccJson.getBytes(UTF_8)));
+    } catch (IOException e) {
+      log.error("Cant initialize GoogleCredentials from stream", e);
+      throw new IllegalStateException("Cant initialize GoogleCredentials from stream" + " , " + e.getMessage());
+    }
+    return optionsCustomizer.apply(FirebaseOptions.builder().setCredentials(credentials)).build();
+  }
+
+  /**
+   * Fetch the first OAuth access token in the background and keep it refreshed so no send pays for the token exchange.
+   */
+  private void prewarm(FirebaseApp app) {
+    ImplFirebaseTrampolines.startTokenRefresher(app);
+    ImplFirebaseTrampolines.submitCallable(app, () -> {
+      try {
+        ImplFirebaseTrampolines.getCredentials(app).refreshIfExpired();
+      } catch (IOException e) {
+        log.warn("Failed to pre-fetch access token for {}, it will be fetched on first use", app.getName(), e);
+      }
+      return null;
+    });
+  }
+
+  private void evictOverflow() {
+    while (apps.size() > maxSize) {
+      Entry eldest = null;
+      for (Entry entry : apps.values()) {
+        if (eldest == null || entry.lastAccess < eldest.lastAccess) eldest = entry;
+      }
+      if (eldest == null) return;
+      evict(eldest);
+    }
+  }
+
+  private void evictIdle() {
+    long now = System.nanoTime();
+    for (Entry entry : apps.values()) {
+      if (now - entry.lastAccess > idleTimeoutNanos) evict(entry);
+    }
+  }
+
+  private void evict(Entry entry) {
+    //Held while the listeners run so the app isn't deleted under them
+    if (!entry.retire()) return;
+    apps.remove(entry.key, entry);
+    byMessaging.remove(entry.messaging, entry);
+    log.info("Evicting Firebase app {}", entry.app.getName());
+    notify(evictionListeners, entry);
+    entry.release();
+  }
+
+  private static void notify(List<Consumer<Entry>> listeners, Entry entry) {
+    for (Consumer<Entry> listener : listeners) {
+      try {
+        listener.accept(entry);
+      } catch (RuntimeException e) {
+        log.warn("Registry listener failed for {}", entry.app.getName(), e);
+      }
+    }
+  }
+
+  static String digest(String svcAccJson) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(svcAccJson.getBytes(UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /**
+   * An app in the registry and the state kept for it by {@link PerApp}, which goes away with the entry.
+   */
+  static final class Entry {
+    private final String key;
+    private final FirebaseApp app;
+    private final FirebaseMessaging messaging;
+    private final Map<Object, Object> state = new ConcurrentHashMap<>();
+    private volatile long lastAccess = System.nanoTime();
+    //Guarded by this
+    private int leases;
+    private boolean retired;
+
+    private Entry(String key, FirebaseApp app) {
+      this(key, app, FirebaseMessaging.getInstance(app));
+    }
+
+    private Entry(String key, FirebaseApp app, FirebaseMessaging messaging) {
+      this.key = key;
+      this.app = app;
+      this.messaging = messaging;
+    }
+
+    FirebaseApp app() {
+      return app;
+    }
+
+    FirebaseMessaging messaging() {
+      return messaging;
+    }
+
+    /**
+     * @return a name for the service account that stays the same when its app is evicted and initialized again,
+     * e.g. to name files kept for it
+     */
+    String id() {
+      return APP_NAME_PREFIX + key;
+    }
+
+    /**
+     * Lease an app the caller already has, e.g. to keep using it after the call that acquired it is done.
+     */
+    Lease lease() {
+      if (!retain()) throw new IllegalStateException(format("Firebase app %s has been evicted", app.getName()));
+      return new Lease(this);
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T state(Object owner, Function<Entry, T> factory) {
+      Object value = state.get(owner);
+      if (value != null) return (T) value;
+      //Not computeIfAbsent, factories look up other state of the same app
+      synchronized (state) {
+        value = state.get(owner);
+        if (value == null) {
+          value = factory.apply(this);
+          state.put(owner, value);
+        }
+        return (T) value;
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T removeState(Object owner) {
+      return (T) state.remove(owner);
+    }
+
+    private synchronized boolean retain() {
+      if (retired) return false;
+      leases++;
+      return true;
+    }
+
+    //Takes a lease that the caller must release
+    private synchronized boolean retire() {
+      if (retired) return false;
+      retired = true;
+      leases++;
+      return true;
+    }
+
+    private void release() {
+      synchronized (this) {
+        if (--leases > 0 || !retired) return;
+      }
+      log.info("Deleting Firebase app {}", app.getName());
+      try {
+        app.delete();
+      } catch (RuntimeException e) {
+        log.warn("Failed to delete Firebase app {}", app.getName(), e);
+      }
+    }
+  }
+
+  /**
+   * Keeps an app from being deleted until it is closed, closing it more than once has no effect.
+   */
+  static final class Lease implements AutoCloseable {
+    private final Entry entry;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private Lease(Entry entry) {
+      this.entry = entry;
+    }
+
+    Entry entry() {
+      return entry;
+    }
+
+    @Override
+    public void close() {
+      if (closed.compareAndSet(false, true)) entry.release();
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package app.hypi.fn;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A transport for firebase-admin built on {@link HttpClient}, so FCM calls are multiplexed as HTTP/2 streams over a few
+ * connections instead of taking a connection each. One instance is shared by every Firebase app, connections to FCM
+ * are pooled and kept alive across apps.
+ * Servers that don't speak HTTP/2 are talked to over HTTP/1.1.
+ */
+class Http2Transport extends HttpTransport {
+  //Set by HttpClient itself, it rejects requests that set them
+  private static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host", "upgrade");
+  private final HttpClient client;
+
+  Http2Transport(Duration connectTimeout) {
+    this(HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_2)
+        .connectTimeout(connectTimeout)
+        .followRedirects(HttpClient.Redirect.NEVER)
+        .build());
+  }
+
+  Http2Transport(HttpClient client) {
+    this.client = client;
+  }
+
+  @Override
+  public boolean supportsMethod(String method) {
+    return true;
+  }
+
+  @Override
+  protected LowLevelHttpRequest buildRequest(String method, String url) {
+    return new Request(method, url);
+  }
+
+  private final class Request extends LowLevelHttpRequest {
+    private final HttpRequest.Builder request;
+    private final String method;
+
+    Request(String method, String url) {
+      this.method = method;
+      this.request = HttpRequest.newBuilder(URI.create(url));
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+      if (!RESTRICTED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) request.header(name, value);
+    }
+
+    @Override
+    public void setTimeout(int connectTimeout, int readTimeout) {
+      //The connect timeout belongs to the shared client, 0 means no timeout for both
+      if (readTimeout > 0) request.timeout(Duration.ofMillis(readTimeout));
+    }
+
+    @Override
+    public LowLevelHttpResponse execute() throws IOException {
+      if (getContentType() != null) request.setHeader("Content-Type", getContentType());
+      if (getContentEncoding() != null) request.setHeader("Content-Encoding", getContentEncoding());
+      HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.noBody();
+      if (getStreamingContent() != null) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(getContentLength() > 0 ? (int) getContentLength() : 1024);
+        getStreamingContent().writeTo(out);
+        body = HttpRequest.BodyPublishers.ofByteArray(out.toByteArray());
+      }
+      try {
+        return new Response(client.send(request.method(method, body).build(), HttpResponse.BodyHandlers.ofInputStream()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for " + method + " " + request.build().uri());
+      }
+    }
+  }
+
+  private static final class Response extends LowLevelHttpResponse {
+    private final HttpResponse<InputStream> response;
+    private final List<String> names = new ArrayList<>();
+    private final List<String> values = new ArrayList<>();
+
+    Response(HttpResponse<InputStream> response) {
+      this.response = response;
+      response.headers().map().forEach((name, headerValues) -> {
+        //HTTP/2 pseudo headers such as :status aren't headers to the caller
+        if (name.startsWith(":")) return;
+        for (String value : headerValues) {
+          names.add(name);
+          values.add(value);
+        }
+      });
+    }
+
+    @Override
+    public InputStream getContent() {
+      return response.body();
+    }
+
+    @Override
+    public String getContentEncoding() {
+      return response.headers().firstValue("content-encoding").orElse(null);
+    }
+
+    @Override
+    public long getContentLength() {
+      return response.headers().firstValueAsLong("content-length").orElse(-1);
+    }
+
+    @Override
+    public String getContentType() {
+      return response.headers().firstValue("content-type").orElse(null);
+    }
+
+    @Override
+    public String getStatusLine() {
+      return (response.version() == HttpClient.Version.HTTP_2 ? "HTTP/2 " : "HTTP/1.1 ") + response.statusCode();
+    }
+
+    @Override
+    public int getStatusCode() {
+      return response.statusCode();
+    }
+
+    @Override
+    public String getReasonPhrase() {
+      //Not sent in HTTP/2 and not exposed by HttpClient for HTTP/1.1
+      return null;
+    }
+
+    @Override
+    public int getHeaderCount() {
+      return names.size();
+    }
+
+    @Override
+    public String getHeaderName(int index) {
+      return names.get(index);
+    }
+
+    @Override
+    public String getHeaderValue(int index) {
+      return values.get(index);
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+      response.body().close();
+    }
+  }
+}
@@ -1,123 +1,250 @@
 package app.hypi.fn;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.google.auth.oauth2.GoogleCredentials;
-import com.google.firebase.FirebaseApp;
-import com.google.firebase.FirebaseOptions;
 import com.google.firebase.messaging.*;
 import io.hypi.arc.base.JSON;
-import io.hypi.arc.base.http.HttpParams;
 import io.hypi.arc.base.http.HypiHttpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static java.lang.String.format;
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.singletonList;
 import static java.util.Optional.ofNullable;
 import static java.util.stream.Collectors.toMap;
 
 public class Main {
   private static final Logger log = LoggerFactory.getLogger(Main.class);
-  private static final String actions = "[send,send-multiple,send-to-topic,subscribe,unsubscribe]";
-  private static final HypiHttpClient http = new HypiHttpClient(false);
-  private static final Map<String, FirebaseApp> instances = new ConcurrentHashMap<>();
+  private static final List<String> actions = List.of(
+      "send", "send-multiple", "send-to-topic", "subscribe", "unsubscribe", "invalidate-token", "send-to-audience", "throttle-stats", "metrics"
+  );
+  private static final TokenResolver tokens = new TokenResolver(new HypiHttpClient(false));
+  static final FirebaseAppRegistry apps = new FirebaseAppRegistry();
+  //The most tokens FCM accepts in one sendEachForMulticast call
+  static final int MULTICAST_LIMIT = 500;
+  //Per app so one tenant's large send doesn't queue every other tenant's multicasts behind it
+  private static final PerApp<AsyncLimiter> multicastLimiters = new PerApp<>(
+      apps,
+      app -> new AsyncLimiter(Settings.integer("FCM_MULTICAST_CONCURRENCY", 8))
+  );
+  private static final PerApp<Throttle> throttles = new PerApp<>(
+      apps,
+      app -> new Throttle("fcm@" + Integer.toHexString(System.identityHashCode(app.messaging())))
+  );
+  private static final int audiencePageSize = Settings.integer("FCM_AUDIENCE_PAGE_SIZE", MULTICAST_LIMIT);
+  private static final int audienceMaxInFlight = Settings.integer("FCM_AUDIENCE_MAX_IN_FLIGHT", 4);
+  private static final PerApp<DeadTokens> deadTokens = new PerApp<>(apps, app -> new DeadTokens());
+  private static final PerApp<MessageTemplate.Registry> templates = new PerApp<>(
+      apps,
+      app -> new MessageTemplate.Registry(Settings.integer("FCM_TEMPLATES_PER_APP", 1000))
+  );
+  private static final PerApp<TopicBatcher> topicBatchers = new PerApp<>(
+      apps,
+      app -> new TopicBatcher(app.messaging(), throttles.get(app), Settings.number("FCM_TOPIC_BATCH_WINDOW_MS", 0)),
+      TopicBatcher::flush
+  );
+  //Only callers passing this key as metrics_key can read the process wide metrics
+  private static final String metricsKey = Settings.str("FCM_METRICS_KEY", null);
+  //Messages are only kept on disk when a directory is configured
+  private static final String outboxDir = Settings.str("FCM_OUTBOX_DIR", null);
+  //Keyed by the app's ID so a service account keeps its outbox directory when its app is evicted and initialized again
+  private static final Map<String, OpenOutbox> outboxes = new ConcurrentHashMap<>();
+
+  static {
+    if (outboxDir != null) {
+      //Resume sending what an earlier process left in the outbox as soon as the app is used again, other outboxes are
+      //only opened when a message has to be kept
+      apps.onInitialization(app -> {
+        if (Files.isDirectory(Path.of(outboxDir, app.id()))) outbox(app);
+      });
+      apps.onEviction(app -> {
+        OpenOutbox open = outboxes.get(app.id());
+        if (open != null && open.app == app && outboxes.remove(app.id(), open)) open.close();
+      });
+    }
+  }
 
   public Object invoke(Map<String, Object> input) throws Exception {
+    return Async.await(invokeAsync(input));
+  }
+
+  /**
+   * The non-blocking form of {@link #invoke(Map)}, the calling thread is released as soon as the request is handed to
+   * FCM (or Hypi, when the token has to be looked up) and the result is delivered through the returned future.
+   * Invalid input is reported through the future too.
+   */
+  public CompletableFuture<Object> invokeAsync(Map<String, Object> input) {
+    long started = System.nanoTime();
+    CompletableFuture<Object> result;
+    try {
+      result = dispatch(input).thenApply(Object.class::cast);
+    } catch (RuntimeException e) {
+      result = CompletableFuture.failedFuture(e);
+    }
+    //Unknown actions are counted together so callers can't grow the metrics without bound
+    String action = getStrInput(input, "args", "action", null);
+    Metrics.action(action != null && actions.contains(action) ? action : "unknown", started, result);
+    return result;
+  }
+
+  private CompletableFuture<?> dispatch(Map<String, Object> input) {
     String svcAccStr = getStrInput(input, "env", "FCM_SVC_ACC_JSON", "Missing environment variable FCM_SVC_ACC_JSON");
     String action = getStrInput(input, "args", "action", "Missing argument action");
 
-    GoogleCredentials credentials;
+    long appStarted = System.nanoTime();
+    var lease = apps.acquire(svcAccStr);
+    Metrics.record(Metrics.Stage.APP, appStarted);
+    //The app isn't deleted while the invocation is still using it, even if it is evicted
+    CompletableFuture<?> result;
     try {
-      credentials = GoogleCredentials.fromStream(new ByteArrayInputStream(svcAccStr.getBytes(UTF_8)));
-    } catch (IOException e) {
-      log.error("Cant initialize GoogleCredentials from stream", e);
-      throw new IllegalStateException("Cant initialize GoogleCredentials from stream" + " , " + e.getMessage());
+      result = dispatch(input, action, lease.entry());
+    } catch (RuntimeException e) {
+      lease.close();
+      throw e;
     }
-    FirebaseOptions options = FirebaseOptions.builder().setCredentials(credentials).build();
-    var app = instances.computeIfAbsent("hypi-fcm-fn" + svcAccStr.hashCode(), k -> FirebaseApp.initializeApp(options, k));
-    var fcm = FirebaseMessaging.getInstance(app);
+    result.whenComplete((v, err) -> lease.close());
+    return result;
+  }
+
+  private CompletableFuture<?> dispatch(Map<String, Object> input, String action, FirebaseAppRegistry.Entry app) {
     switch (action) {
       case "send" -> {
-        return sendToSingleDevice(
-            fcm,
-            (Map<String, Object>) ofNullable(input.get("args"))
-                .map(v -> ((Map) v).get("message"))
-                .map(v -> v instanceof String ? JSON.parse((String) v) : v)
-                .orElseThrow(() -> new IllegalArgumentException("Require message object not provided")),
-            //If the client has a token then allow them to send to it
-            ofNullable(getStrInput(input, "args", "token", null)).orElseGet(() -> {
-              try {
-                return findToken(
-                    getStrInput(input, "env", "hypi.token", "Required Hypi token not provided"),
-                    getStrInput(input, "env", "hypi.domain", "Required Hypi token not provided"),
-                    getStrInput(input, "args", "token_src_type", "Required String argument token_src_type"),
-                    getStrInput(input, "args", "token_src_field", "Required String argument token_src_field"),
-                    getStrInput(input, "args", "token_src_id", "Required String argument token_src_id")
-                );
-              } catch (Exception e) {
-                throw new RuntimeException(e);
-              }
-            })
+        var template = getTemplateInput(input, app, "Require message object not provided");
+        var vars = getVarsInput(input);
+        //If the client has a token then allow them to send to it
+        String token = getStrInput(input, "args", "token", null);
+        var resolvedToken = token != null ? CompletableFuture.completedFuture(token) : tokens.resolve(
+            getStrInput(input, "env", "hypi.token", "Required Hypi token not provided"),
+            getStrInput(input, "env", "hypi.domain", "Required Hypi token not provided"),
+            getStrInput(input, "args", "token_src_type", "Required String argument token_src_type"),
+            getStrInput(input, "args", "token_src_field", "Required String argument token_src_field"),
+            getStrInput(input, "args", "token_src_id", "Required String argument token_src_id")
+        );
+        boolean durable = getBoolInput(input, "durable");
+        return resolvedToken.thenCompose(t -> deliver(app, durable, template, vars, "token", t, () -> sendToSingleDeviceAsync(app, template, vars, t)));
+      }
+      case "send-multiple" -> {
+        var template = getTemplateInput(input, app, "Required message object not provided");
+        var vars = getVarsInput(input);
+        //Either the tokens or the IDs of the objects in Hypi that hold them
+        List<String> deviceTokens = getListInput(input, "args", "tokens", null);
+        if (deviceTokens != null) return sendToEachDeviceAsync(app, template, vars, deviceTokens);
+        List<String> ids = getListInput(input, "args", "token_src_ids", "Required list argument tokens or token_src_ids");
+        return tokens.resolveAll(
+            getStrInput(input, "env", "hypi.token", "Required Hypi token not provided"),
+            getStrInput(input, "env", "hypi.domain", "Required Hypi token not provided"),
+            getStrInput(input, "args", "token_src_type", "Required String argument token_src_type"),
+            getStrInput(input, "args", "token_src_field", "Required String argument token_src_field"),
+            ids
+        ).thenCompose(found -> sendToIdsAsync(app, template, vars, ids, found));
+      }
+      case "send-to-audience" -> {
+        return sendToAudienceAsync(
+            app,
+            getTemplateInput(input, app, "Required message object not provided"),
+            getVarsInput(input),
+            getStrInput(input, "env", "hypi.token", "Required Hypi token not provided"),
+            getStrInput(input, "env", "hypi.domain", "Required Hypi token not provided"),
+            getStrInput(input, "args", "token_src_type", "Required String argument token_src_type"),
+            getStrInput(input, "args", "token_src_field", "Required String argument token_src_field"),
+            ofNullable(getStrInput(input, "args", "filter", null)).orElse("*")
         );
       }
       case "subscribe" -> {
-        return subscribe(
-            fcm,
+        return subscribeAllAsync(
+            app,
             getStrInput(input, "args", "topic", "Required String argument topic"),
-            singletonList(getStrInput(input, "args", "token", "Required String argument token"))
+            getTokensInput(input)
         );
       }
       case "unsubscribe" -> {
-        return unsubscribe(
-            fcm,
+        return unsubscribeAllAsync(
+            app,
             getStrInput(input, "args", "topic", "Required String argument topic"),
-            singletonList(getStrInput(input, "args", "token", "Required String argument token"))
+            getTokensInput(input)
         );
       }
       case "send-to-topic" -> {
-        return sendToTopic(
-            fcm,
-            (Map<String, Object>) ofNullable(input.get("args"))
-                .map(v -> ((Map) v).get("message"))
-                .map(v -> v instanceof String ? JSON.parse((String) v) : v)
-                .orElseThrow(() -> new IllegalArgumentException("Required message object not provided")),
-            getStrInput(input, "args", "topic", "Required String argument topic")
-        );
+        var template = getTemplateInput(input, app, "Required message object not provided");
+        var vars = getVarsInput(input);
+        String topic = getStrInput(input, "args", "topic", "Required String argument topic");
+        return deliver(app, getBoolInput(input, "durable"), template, vars, "topic", topic, () -> sendToTopicAsync(app, template, vars, topic));
+      }
+      case "throttle-stats" -> {
+        return CompletableFuture.completedFuture(throttles.get(app).stats());
+      }
+      case "metrics" -> {
+        Metrics.authorize(metricsKey, getStrInput(input, "args", "metrics_key", null));
+        Map<String, Object> metrics = Metrics.snapshot();
+        metrics.put("throttle", throttles.get(app).stats());
+        return CompletableFuture.completedFuture(metrics);
+      }
+      case "invalidate-token" -> {
+        //Either the stale token itself or where it is stored in Hypi
+        String token = getStrInput(input, "args", "token", null);
+        if (token != null) return CompletableFuture.completedFuture(tokens.invalidateToken(token));
+        return CompletableFuture.completedFuture(tokens.invalidate(
+            getStrInput(input, "env", "hypi.domain", "Required Hypi token not provided"),
+            getStrInput(input, "args", "token_src_type", "Required String argument token_src_type"),
+            getStrInput(input, "args", "token_src_field", "Required String argument token_src_field"),
+            getStrInput(input, "args", "token_src_id", "Required String argument token_src_id")
+        ) ? 1 : 0);
       }
       default ->
           throw new UnsupportedOperationException(format("%s is not one of the supported actions %s", action, actions));
     }
   }
 
-  private String findToken(String token, String instanceDomain, String type, String field, String id) throws ExecutionException, InterruptedException, IOException {
-    var entity = http.post(
-        "https://api.hypi.app/graphql",
-        HttpParams.params()
-            .setStringBody(format("{\n" +
-                "  \"variables\": {},\n" +
-                "  \"query\": \"{\\n  get(type: %s, id: \\\"%s\\\") {\\n    ... on %s {\\n      %s\\n    }\\n  }\\n}\\n\"\n" +
-                "}", type, id, type, field
-            ))
-            .setHeaders(Map.of(
-                "Authorization", token,
-                "hypi-domain", instanceDomain
-            ))
-    ).get().getEntity();
-    if (entity == null) return null;
-    JsonNode node = JSON.parse(entity.getContent().readAllBytes());
-    return ofNullable(node.get("data")).map(v -> v.get("get")).map(v -> v.get(field)).map(JsonNode::asText).orElse(null);
-  }
-
-  private static String getStrInput(Map<String, Object> input, String args, String arg, String errMsg) {
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> getMapInput(Map<String, Object> input, String arg, String errMsg) {
+    var found = ofNullable(input.get("args"))
+        .map(v -> ((Map) v).get(arg))
+        .map(v -> v instanceof String ? JSON.parse((String) v) : v);
+    if (found.isPresent()) return (Map<String, Object>) found.get();
+    if (errMsg != null) throw new IllegalArgumentException(errMsg);
+    return null;
+  }
+
+  /**
+   * In template mode, when template_id or template_vars is given, the message is translated once and cached, either
+   * under template_id or by its content, and only the ${placeholders} are filled in from template_vars per send.
+   * A message given with a template_id replaces the one registered under that ID, without a message the registered one is used.
+   * Registered templates are kept until the app is evicted.
+   */
+  private static MessageTemplate getTemplateInput(Map<String, Object> input, FirebaseAppRegistry.Entry app, String errMsg) {
+    String templateId = getStrInput(input, "args", "template_id", null);
+    if (templateId != null) return templates.get(app).get(templateId, getMapInput(input, "message", null));
+    Map<String, Object> pushMessage = getMapInput(input, "message", errMsg);
+    return getVarsInput(input) == null ? MessageTemplate.compile(pushMessage) : MessageTemplate.cached(pushMessage);
+  }
+
+  /**
+   * @return the tokens argument if given, otherwise the single token argument
+   */
+  private static List<String> getTokensInput(Map<String, Object> input) {
+    return ofNullable(getListInput(input, "args", "tokens", null))
+        .orElseGet(() -> singletonList(getStrInput(input, "args", "token", "Required String argument token or list argument tokens")));
+  }
+
+  private static Map<String, Object> getVarsInput(Map<String, Object> input) {
+    return getMapInput(input, "template_vars", null);
+  }
+
+  static String getStrInput(Map<String, Object> input, String args, String arg, String errMsg) {
     var found = ofNullable(input.get(args)).filter(v -> v instanceof Map).map(v -> {
       if (arg.contains(".")) {
         for (String k : arg.split("\\.")) {
@@ -134,93 +261,457 @@ public class Main {
     return null;
   }
 
+  private static boolean getBoolInput(Map<String, Object> input, String arg) {
+    return ofNullable(input.get("args")).filter(v -> v instanceof Map).map(v -> ((Map<?, ?>) v).get(arg))
+        .map(v -> Boolean.parseBoolean(v.toString())).orElse(false);
+  }
+
+  private static List<String> getListInput(Map<String, Object> input, String args, String arg, String errMsg) {
+    var found = ofNullable(input.get(args)).filter(v -> v instanceof Map).map(v -> ((Map<?, ?>) v).get(arg)).map(v -> {
+      if (v instanceof Collection<?> c) return c.stream().filter(Objects::nonNull).map(Object::toString).toList();
+      //Allow comma separated strings for callers that can't pass a list
+      if (v instanceof String str) return Arrays.stream(str.split(",")).map(String::trim).filter(t -> !t.isEmpty()).toList();
+      return null;
+    }).filter(v -> !v.isEmpty());
+    if (found.isPresent()) return found.get();
+    if (errMsg != null) throw new IllegalArgumentException(errMsg);
+    return null;
+  }
+
   /**
    * @return message ID
    */
   public String sendToSingleDevice(FirebaseMessaging messaging, Map<String, Object> pushMessage, String token) {
-    Message.Builder message = buildPushMsg(pushMessage);
-    message.setToken(token);
+    return Async.await(sendToSingleDeviceAsync(messaging, pushMessage, token));
+  }
 
-    log.info("Sending notification to token {}.", token);
-    try {
-      return messaging.send(message.build());
-    } catch (FirebaseMessagingException e) {
+  /**
+   * @return a future completed with the message ID
+   */
+  public CompletableFuture<String> sendToSingleDeviceAsync(FirebaseMessaging messaging, Map<String, Object> pushMessage, String token) {
+    return sendToSingleDeviceAsync(apps.entryOf(messaging), MessageTemplate.compile(pushMessage), Map.of(), token);
+  }
 
-      log.error("Failed to send notification to token " + token, e);
-      throw new IllegalStateException(format("FCM code %s, with reason: %s", e.getMessagingErrorCode(), e.getMessage()), e);
+  CompletableFuture<String> sendToSingleDeviceAsync(FirebaseAppRegistry.Entry app, MessageTemplate template, Map<String, ?> vars, String token) {
+    var messaging = app.messaging();
+    var dead = deadTokens.get(app);
+    if (token != null && dead.contains(token)) {
+      return CompletableFuture.failedFuture(new IllegalStateException(format(
+          "FCM code %s, with reason: %s", MessagingErrorCode.UNREGISTERED, "Not sent, FCM previously reported this token as unregistered"
+      )));
     }
+    long buildStarted = System.nanoTime();
+    Message message = template.toMessage(vars).setToken(token).build();
+    Metrics.record(Metrics.Stage.BUILD, buildStarted);
+
+    log.debug("Sending notification to token {}.", mask(token));
+    var sent = throttles.get(app).call(() -> Metrics.time(Metrics.Stage.FCM, Async.toCompletable(messaging.sendAsync(message))));
+    return onFcmError(sent.whenComplete((id, err) -> {
+      if (err != null && Async.unwrap(err) instanceof FirebaseMessagingException e && DeadTokens.isDeadTokenError(e.getMessagingErrorCode(), e.getMessage())) {
+        markDead(dead, token);
+      }
+    }), "Failed to send notification to token " + mask(token));
   }
 
   /**
-   * @return FailedTokens list
+   * @return FCM's response for every token, in the order given
    */
   public BatchResponse sendToMultipleDevice(FirebaseMessaging messaging, Map<String, Object> pushMessage, List<String> tokens) {
+    return Async.await(sendToMultipleDeviceAsync(messaging, pushMessage, tokens));
+  }
 
-    MulticastMessage.Builder message = MulticastMessage.builder();
-    buildMsgData(pushMessage, message::putAllData);
-    buildNotification(pushMessage, notification -> message.setNotification(notification.build()));
-    buildAndroid(pushMessage, android -> message.setAndroidConfig(android.build()));
-    buildWeb(pushMessage, web -> message.setWebpushConfig(web.build()));
-    buildApns(pushMessage, apns -> message.setApnsConfig(apns.build()));
+  /**
+   * Sends to any number of tokens in chunks, as {@link #sendToEachDeviceAsync(FirebaseMessaging, Map, List)} does.
+   * A {@link BatchResponse} only holds FCM's own responses, so tokens FCM reported as unregistered before are sent to
+   * anyway and a chunk that fails as a whole fails the send.
+   *
+   * @return a future completed with FCM's response for every token, in the order given
+   */
+  public CompletableFuture<BatchResponse> sendToMultipleDeviceAsync(FirebaseMessaging messaging, Map<String, Object> pushMessage, List<String> tokens) {
+    var app = apps.entryOf(messaging);
+    var template = MessageTemplate.compile(pushMessage);
+    var dead = deadTokens.get(app);
+    var sent = inChunks(multicastLimiters.get(app), tokens, chunk -> throttles.get(app).sendEach(chunk, subset -> multicast(app, template, Map.of(), subset)).thenApply(responses -> {
+      for (int i = 0; i < responses.size(); i++) {
+        FirebaseMessagingException e = responses.get(i).getException();
+        if (e == null) continue;
+        Metrics.fcmError(e.getMessagingErrorCode());
+        if (DeadTokens.isDeadTokenError(e.getMessagingErrorCode(), e.getMessage())) markDead(dead, chunk.get(i));
+      }
+      return responses;
+    }));
+    return onFcmError(sent, "Failed to send notification to " + tokens.size() + " tokens").thenApply(MergedBatchResponse::new);
+  }
 
-    message.addAllTokens(tokens);
+  /**
+   * @return the outcome for every token
+   */
+  public MulticastResult sendToEachDevice(FirebaseMessaging messaging, Map<String, Object> pushMessage, List<String> tokens) {
+    return Async.await(sendToEachDeviceAsync(messaging, pushMessage, tokens));
+  }
 
-    log.info("Starting sending notification to tokens.");
-    try {
-      return messaging.sendEachForMulticast(message.build());
-    } catch (FirebaseMessagingException e) {
+  /**
+   * Sends to any number of tokens. Tokens are split into chunks of at most {@link #MULTICAST_LIMIT}, the chunks are
+   * sent concurrently (bounded by FCM_MULTICAST_CONCURRENCY per app) and the results merged in token order. Tokens FCM
+   * reported as unregistered before are skipped, a chunk that fails as a whole is reported against each of its tokens.
+   *
+   * @return a future completed with the outcome for every token
+   */
+  public CompletableFuture<MulticastResult> sendToEachDeviceAsync(FirebaseMessaging messaging, Map<String, Object> pushMessage, List<String> tokens) {
+    return sendToEachDeviceAsync(apps.entryOf(messaging), MessageTemplate.compile(pushMessage), Map.of(), tokens);
+  }
+
+  CompletableFuture<MulticastResult> sendToEachDeviceAsync(FirebaseAppRegistry.Entry app, MessageTemplate template, Map<String, ?> vars, List<String> tokens) {
+    log.debug("Starting sending notification to {} tokens.", tokens.size());
+    var dead = deadTokens.get(app);
+    MulticastResult.TokenResponse[] responses = new MulticastResult.TokenResponse[tokens.size()];
+    List<String> live = new ArrayList<>(tokens.size());
+    List<Integer> liveIndexes = new ArrayList<>(tokens.size());
+    for (int i = 0; i < tokens.size(); i++) {
+      String token = tokens.get(i);
+      if (dead.contains(token)) {
+        responses[i] = MulticastResult.TokenResponse.skipped(token);
+      } else {
+        live.add(token);
+        liveIndexes.add(i);
+      }
+    }
+    return inChunks(multicastLimiters.get(app), live, chunk -> sendChunkAsync(app, template, vars, chunk)).thenApply(sent -> {
+      for (int i = 0; i < sent.size(); i++) {
+        MulticastResult.TokenResponse response = sent.get(i);
+        if (response.isDead()) markDead(dead, response.token());
+        responses[liveIndexes.get(i)] = response;
+      }
+      return new MulticastResult(Arrays.asList(responses));
+    });
+  }
 
-      log.error("Failed to send notification to tokens", e);
-      throw new IllegalStateException(format("FCM code %s, with reason: %s", e.getMessagingErrorCode(), e.getMessage()), e);
+  /**
+   * Split the tokens into chunks of at most {@link #MULTICAST_LIMIT} and send them concurrently, at most as many at
+   * once as {@code limiter} allows.
+   *
+   * @return a future completed with the result of every chunk, concatenated in token order
+   */
+  static <T> CompletableFuture<List<T>> inChunks(AsyncLimiter limiter, List<String> tokens, Function<List<String>, CompletableFuture<List<T>>> send) {
+    List<CompletableFuture<List<T>>> chunks = new ArrayList<>();
+    for (int i = 0; i < tokens.size(); i += MULTICAST_LIMIT) {
+      List<String> chunk = tokens.subList(i, Math.min(tokens.size(), i + MULTICAST_LIMIT));
+      chunks.add(limiter.submit(() -> send.apply(chunk)));
     }
+    return CompletableFuture.allOf(chunks.toArray(CompletableFuture<?>[]::new)).thenApply(done -> {
+      List<T> results = new ArrayList<>(tokens.size());
+      for (CompletableFuture<List<T>> chunk : chunks) results.addAll(chunk.join());
+      return results;
+    });
+  }
+
+  /**
+   * Send to the token stored for each ID, IDs without a token aren't sent to.
+   *
+   * @param found the token of each ID that has one
+   * @return a future completed with a response carrying the ID for every ID, in the order given
+   */
+  private CompletableFuture<MulticastResult> sendToIdsAsync(FirebaseAppRegistry.Entry app, MessageTemplate template, Map<String, ?> vars, List<String> ids, Map<String, String> found) {
+    List<String> deviceTokens = ids.stream().filter(found::containsKey).map(found::get).toList();
+    return sendToEachDeviceAsync(app, template, vars, deviceTokens).thenApply(sent -> {
+      List<MulticastResult.TokenResponse> responses = new ArrayList<>(ids.size());
+      Iterator<MulticastResult.TokenResponse> results = sent.getResponses().iterator();
+      for (String id : ids) {
+        responses.add(found.containsKey(id) ? results.next().withId(id) : MulticastResult.TokenResponse.missing(id));
+      }
+      return new MulticastResult(responses);
+    });
+  }
+
+  private CompletableFuture<List<MulticastResult.TokenResponse>> sendChunkAsync(FirebaseAppRegistry.Entry app, MessageTemplate template, Map<String, ?> vars, List<String> tokens) {
+    //Only the tokens that failed with a retryable error are sent again
+    var sent = throttles.get(app).sendEach(tokens, subset -> multicast(app, template, vars, subset));
+    return sent.handle((responses, err) -> {
+      List<MulticastResult.TokenResponse> results = new ArrayList<>(tokens.size());
+      if (err == null) {
+        for (int i = 0; i < tokens.size(); i++) {
+          MulticastResult.TokenResponse response = MulticastResult.TokenResponse.of(tokens.get(i), responses.get(i));
+          if (!response.isSuccessful()) Metrics.fcmError(response.errorCode());
+          results.add(response);
+        }
+        return results;
+      }
+      Throwable cause = Async.unwrap(err);
+      if (!(cause instanceof FirebaseMessagingException e)) throw new IllegalStateException(cause.getMessage(), cause);
+      //The whole chunk failed, record it against each token so the other chunks' results are kept
+      log.error("Failed to send notification to a chunk of " + tokens.size() + " tokens", e);
+      for (String token : tokens) {
+        Metrics.fcmError(e.getMessagingErrorCode());
+        results.add(MulticastResult.TokenResponse.failed(token, e));
+      }
+      return results;
+    });
+  }
+
+  //One FCM call for up to MULTICAST_LIMIT tokens
+  private static CompletableFuture<BatchResponse> multicast(FirebaseAppRegistry.Entry app, MessageTemplate template, Map<String, ?> vars, List<String> tokens) {
+    long buildStarted = System.nanoTime();
+    MulticastMessage message = template.toMulticast(vars).addAllTokens(tokens).build();
+    Metrics.record(Metrics.Stage.BUILD, buildStarted);
+    return Metrics.time(Metrics.Stage.FCM, Async.toCompletable(app.messaging().sendEachForMulticastAsync(message)));
+  }
+
+  /**
+   * Send to the token in {@code field} of every {@code type} object in Hypi matching the ArcQL {@code filter}.
+   * Tokens are read page by page and sent in multicast chunks as they arrive, reading pauses while
+   * FCM_AUDIENCE_MAX_IN_FLIGHT chunks are being sent so memory use doesn't grow with the audience.
+   *
+   * @return a future completed with counts of the tokens sent to
+   */
+  CompletableFuture<AudienceResult> sendToAudienceAsync(FirebaseAppRegistry.Entry app, MessageTemplate template, Map<String, ?> vars, String hypiToken, String instanceDomain, String type, String field, String filter) {
+    log.debug("Starting sending notification to {} objects matching {}.", type, filter);
+    var dead = deadTokens.get(app);
+    return new AudienceSend(
+        cursor -> tokens.findPage(hypiToken, instanceDomain, type, field, filter, audiencePageSize, cursor),
+        chunk -> {
+          List<MulticastResult.TokenResponse> responses = new ArrayList<>(chunk.size());
+          List<String> live = new ArrayList<>(chunk.size());
+          for (String token : chunk) {
+            if (dead.contains(token)) responses.add(MulticastResult.TokenResponse.skipped(token));
+            else live.add(token);
+          }
+          if (live.isEmpty()) return CompletableFuture.completedFuture(responses);
+          return multicastLimiters.get(app).submit(() -> sendChunkAsync(app, template, vars, live)).thenApply(sent -> {
+            for (MulticastResult.TokenResponse response : sent) {
+              if (response.isDead()) markDead(dead, response.token());
+              responses.add(response);
+            }
+            return responses;
+          });
+        },
+        MULTICAST_LIMIT,
+        audienceMaxInFlight
+    ).start();
   }
 
   /**
    * @return message ID
    */
   public String sendToTopic(FirebaseMessaging messaging, Map<String, Object> pushMessage, String topic) {
-    Message.Builder message = buildPushMsg(pushMessage);
-    message.setTopic(topic);
-    log.info("Starting sending notification to topic {}.", topic);
-    try {
-      return messaging.send(message.build());
-    } catch (FirebaseMessagingException e) {
-      log.error("Failed to send notification to topic " + topic, e);
-      throw new IllegalStateException(format("FCM code %s, with reason: %s", e.getMessagingErrorCode(), e.getMessage()), e);
-    }
+    return Async.await(sendToTopicAsync(messaging, pushMessage, topic));
+  }
+
+  /**
+   * @return a future completed with the message ID
+   */
+  public CompletableFuture<String> sendToTopicAsync(FirebaseMessaging messaging, Map<String, Object> pushMessage, String topic) {
+    return sendToTopicAsync(apps.entryOf(messaging), MessageTemplate.compile(pushMessage), Map.of(), topic);
+  }
+
+  CompletableFuture<String> sendToTopicAsync(FirebaseAppRegistry.Entry app, MessageTemplate template, Map<String, ?> vars, String topic) {
+    var messaging = app.messaging();
+    long buildStarted = System.nanoTime();
+    Message message = template.toMessage(vars).setTopic(topic).build();
+    Metrics.record(Metrics.Stage.BUILD, buildStarted);
+    log.debug("Starting sending notification to topic {}.", topic);
+    var sent = throttles.get(app).call(() -> Metrics.time(Metrics.Stage.FCM, Async.toCompletable(messaging.sendAsync(message))));
+    return onFcmError(sent, "Failed to send notification to topic " + topic);
   }
 
   public TopicManagementResponse subscribe(FirebaseMessaging messaging, String topic, List<String> tokens) {
-    log.info("Starting subscribe tokens {} to topic {}.", tokens, topic);
-    try {
-      return messaging.subscribeToTopic(tokens, topic);
-    } catch (FirebaseMessagingException e) {
-      log.error("Failed to subscribe to topic " + topic, e);
-      throw new IllegalStateException(format("FCM code %s, with reason: %s", e.getMessagingErrorCode(), e.getMessage()), e);
-    }
+    return Async.await(subscribeAsync(messaging, topic, tokens));
+  }
+
+  public CompletableFuture<TopicManagementResponse> subscribeAsync(FirebaseMessaging messaging, String topic, List<String> tokens) {
+    log.debug("Starting subscribe {} tokens to topic {}.", tokens.size(), topic);
+    return onFcmError(Metrics.time(Metrics.Stage.FCM, Async.toCompletable(messaging.subscribeToTopicAsync(tokens, topic))), "Failed to subscribe to topic " + topic);
   }
 
   public TopicManagementResponse unsubscribe(FirebaseMessaging messaging, String topic, List<String> tokens) {
-    log.info("Starting unsubscribe tokens {} to topic {}.", tokens, topic);
-    try {
-      return messaging.unsubscribeFromTopic(tokens, topic);
-    } catch (FirebaseMessagingException e) {
-      log.error("Failed to unsubscribe from topic " + topic, e.getMessage());
-      throw new IllegalStateException(format("FCM code %s, with reason: %s", e.getMessagingErrorCode(), e.getMessage()), e);
+    return Async.await(unsubscribeAsync(messaging, topic, tokens));
+  }
+
+  public CompletableFuture<TopicManagementResponse> unsubscribeAsync(FirebaseMessaging messaging, String topic, List<String> tokens) {
+    log.debug("Starting unsubscribe {} tokens from topic {}.", tokens.size(), topic);
+    return onFcmError(Metrics.time(Metrics.Stage.FCM, Async.toCompletable(messaging.unsubscribeFromTopicAsync(tokens, topic))), "Failed to unsubscribe from topic " + topic);
+  }
+
+  /**
+   * Subscribe any number of tokens. Requests for the same topic from concurrent callers are merged into calls of up to
+   * 1000 tokens when FCM_TOPIC_BATCH_WINDOW_MS is set, larger requests are always split.
+   *
+   * @return a future completed with the outcome for the given tokens only
+   */
+  public CompletableFuture<TopicResult> subscribeAllAsync(FirebaseMessaging messaging, String topic, List<String> tokens) {
+    return subscribeAllAsync(apps.entryOf(messaging), topic, tokens);
+  }
+
+  CompletableFuture<TopicResult> subscribeAllAsync(FirebaseAppRegistry.Entry app, String topic, List<String> tokens) {
+    log.debug("Starting subscribe {} tokens to topic {}.", tokens.size(), topic);
+    return onFcmError(topicBatchers.get(app).subscribe(topic, tokens), "Failed to subscribe to topic " + topic);
+  }
+
+  /**
+   * The counterpart of {@link #subscribeAllAsync(FirebaseMessaging, String, List)}.
+   */
+  public CompletableFuture<TopicResult> unsubscribeAllAsync(FirebaseMessaging messaging, String topic, List<String> tokens) {
+    return unsubscribeAllAsync(apps.entryOf(messaging), topic, tokens);
+  }
+
+  CompletableFuture<TopicResult> unsubscribeAllAsync(FirebaseAppRegistry.Entry app, String topic, List<String> tokens) {
+    log.debug("Starting unsubscribe {} tokens from topic {}.", tokens.size(), topic);
+    return onFcmError(topicBatchers.get(app).unsubscribe(topic, tokens), "Failed to unsubscribe from topic " + topic);
+  }
+
+  /**
+   * Send a message now, or leave it in the app's outbox to be sent in the background. With {@code durable} it goes
+   * straight to the outbox, otherwise only when FCM is still overloaded or unavailable after the throttle's retries.
+   *
+   * @param target "token" or "topic"
+   * @return a future completed with the message ID, or {@code {"queued": true}} if the message went to the outbox
+   */
+  private static CompletableFuture<Object> deliver(FirebaseAppRegistry.Entry app, boolean durable, MessageTemplate template, Map<String, ?> vars, String target, String to, Supplier<CompletableFuture<String>> send) {
+    if (outboxDir == null) {
+      if (durable) throw new IllegalArgumentException("durable requires the FCM_OUTBOX_DIR environment variable");
+      return send.get().thenApply(Object.class::cast);
+    }
+    if (durable) {
+      var record = Outbox.record(target, to, template.toSource(vars));
+      return outbox(app).append(record).thenApply(written -> Map.of("queued", true));
     }
+    return send.get().<CompletableFuture<Object>>handle((id, err) -> {
+      if (err == null) return CompletableFuture.completedFuture(id);
+      Throwable cause = Async.unwrap(err);
+      if (!(cause.getCause() instanceof FirebaseMessagingException e && Throttle.isRetryable(e))) return CompletableFuture.failedFuture(cause);
+      log.warn("FCM failed with {}, the message is queued in the outbox", e.getMessagingErrorCode());
+      CompletableFuture<Void> written;
+      try {
+        written = outbox(app).append(Outbox.record(target, to, template.toSource(vars)));
+      } catch (RuntimeException outboxErr) {
+        written = CompletableFuture.failedFuture(outboxErr);
+      }
+      //If the message can't be kept the caller gets FCM's error, as without an outbox
+      return written.<Object>thenApply(v -> Map.of("queued", true)).exceptionallyCompose(outboxErr -> {
+        log.error("Failed to queue the message in the outbox", Async.unwrap(outboxErr));
+        return CompletableFuture.failedFuture(cause);
+      });
+    }).thenCompose(f -> f);
   }
 
-  private Message.Builder buildPushMsg(Map<String, Object> pushMessage) {
-    Message.Builder message = Message.builder();
-    buildMsgData(pushMessage, message::putAllData);
-    buildNotification(pushMessage, notification -> message.setNotification(notification.build()));
-    buildAndroid(pushMessage, android -> message.setAndroidConfig(android.build()));
-    buildWeb(pushMessage, web -> message.setWebpushConfig(web.build()));
-    buildApns(pushMessage, apns -> message.setApnsConfig(apns.build()));
-    return message;
+  /**
+   * @return the app's outbox, opening it if this is the first time it is used. FCM_OUTBOX_DIR must be set
+   */
+  private static Outbox outbox(FirebaseAppRegistry.Entry app) {
+    //Opening reads the directory, that happens in the holder so it doesn't block the map for other apps
+    OpenOutbox open = outboxes.get(app.id());
+    if (open == null) {
+      OpenOutbox created = new OpenOutbox(app);
+      open = outboxes.putIfAbsent(app.id(), created);
+      if (open == null) open = created;
+    }
+    return open.outbox();
+  }
+
+  /**
+   * FCM's responses to several multicast calls, in token order.
+   */
+  private static final class MergedBatchResponse implements BatchResponse {
+    private final List<SendResponse> responses;
+    private final int successCount;
+
+    MergedBatchResponse(List<SendResponse> responses) {
+      this.responses = Collections.unmodifiableList(responses);
+      this.successCount = (int) responses.stream().filter(SendResponse::isSuccessful).count();
+    }
+
+    @Override
+    public List<SendResponse> getResponses() {
+      return responses;
+    }
+
+    @Override
+    public int getSuccessCount() {
+      return successCount;
+    }
+
+    @Override
+    public int getFailureCount() {
+      return responses.size() - successCount;
+    }
+  }
+
+  /**
+   * An app's outbox, opened by the first caller that needs it while later callers for the same app wait.
+   */
+  private static final class OpenOutbox {
+    private final FirebaseAppRegistry.Entry app;
+    private volatile Outbox outbox;
+    private FirebaseAppRegistry.Lease lease;
+    private boolean closed;
+
+    OpenOutbox(FirebaseAppRegistry.Entry app) {
+      this.app = app;
+    }
+
+    Outbox outbox() {
+      Outbox open = outbox;
+      if (open != null) return open;
+      synchronized (this) {
+        if (closed) throw new IllegalStateException(format("The outbox of %s is closed", app.id()));
+        if (outbox == null) {
+          //The drainer sends in the background, the app is kept until the outbox is closed
+          var lease = app.lease();
+          try {
+            var dead = deadTokens.get(app);
+            outbox = new Outbox(Path.of(outboxDir, app.id()), app.messaging(), throttles.get(app), token -> markDead(dead, token));
+            this.lease = lease;
+          } catch (RuntimeException e) {
+            lease.close();
+            throw e;
+          }
+        }
+        return outbox;
+      }
+    }
+
+    synchronized void close() {
+      closed = true;
+      if (outbox == null) return;
+      outbox.close();
+      lease.close();
+    }
+  }
+
+  /**
+   * Remember a token FCM rejected so it isn't sent to again, and forget any cached lookup that resolved to it so a
+   * newly stored token is picked up.
+   */
+  private static void markDead(DeadTokens dead, String token) {
+    dead.add(token);
+    tokens.invalidateToken(token);
+  }
+
+  /**
+   * @return enough of the token to tell tokens apart in logs without logging a credential
+   */
+  static String mask(String token) {
+    if (token == null) return null;
+    return token.length() <= 8 ? "***" : token.substring(0, 6) + "***(" + token.length() + ")";
+  }
+
+  /**
+   * Log FCM failures and surface them the same way for every action, as an {@link IllegalStateException} with the FCM code.
+   */
+  private static <T> CompletableFuture<T> onFcmError(CompletableFuture<T> future, String failure) {
+    return future.handle((value, err) -> {
+      if (err == null) return value;
+      Throwable cause = Async.unwrap(err);
+      log.error(failure, cause);
+      if (cause instanceof FirebaseMessagingException e) {
+        Metrics.fcmError(e.getMessagingErrorCode());
+        throw new IllegalStateException(format("FCM code %s, with reason: %s", e.getMessagingErrorCode(), e.getMessage()), e);
+      }
+      if (cause instanceof RuntimeException re) throw re;
+      throw new IllegalStateException(cause.getMessage(), cause);
+    });
   }
 
-  private void buildApns(Map<String, Object> pushMessage, Consumer<ApnsConfig.Builder> onApns) {
+  static void buildApns(Map<String, Object> pushMessage, Consumer<ApnsConfig.Builder> onApns) {
     Map<String, Object> apnsMap = (Map<String, Object>) pushMessage.get("apns");
     if (apnsMap != null && !apnsMap.isEmpty()) {
       ApnsConfig.Builder apns = ApnsConfig.builder();
@@ -254,7 +745,7 @@ public class Main {
     }
   }
 
-  private void buildWeb(Map<String, Object> pushMessage, Consumer<WebpushConfig.Builder> onWeb) {
+  static void buildWeb(Map<String, Object> pushMessage, Consumer<WebpushConfig.Builder> onWeb) {
     Map<String, Object> webpushCfg = (Map<String, Object>) pushMessage.get("webpush");
     if (webpushCfg != null && !webpushCfg.isEmpty()) {
       WebpushConfig.Builder web = WebpushConfig.builder();
@@ -294,7 +785,7 @@ public class Main {
     }
   }
 
-  private void buildAndroid(Map<String, Object> pushMessage, Consumer<AndroidConfig.Builder> onAndroid) {
+  static void buildAndroid(Map<String, Object> pushMessage, Consumer<AndroidConfig.Builder> onAndroid) {
     Map<String, Object> androidCfg = (Map<String, Object>) pushMessage.get("android");
     if (androidCfg != null && !androidCfg.isEmpty()) {
       AndroidConfig.Builder android = AndroidConfig.builder();
@@ -365,7 +856,7 @@ public class Main {
     }
   }
 
-  private void buildNotification(Map<String, Object> pushMessage, Consumer<Notification.Builder> onNotification) {
+  static void buildNotification(Map<String, Object> pushMessage, Consumer<Notification.Builder> onNotification) {
     Map<String, Object> notificationMsg = (Map<String, Object>) pushMessage.get("notification");
     if (notificationMsg != null && !notificationMsg.isEmpty()) {
       Notification.Builder notification = Notification.builder();
@@ -376,10 +867,10 @@ public class Main {
     }
   }
 
-  private void buildMsgData(Map<String, Object> pushMessage, Consumer<Map<String, String>> onData) {
+  static void buildMsgData(Map<String, Object> pushMessage, Consumer<Map<String, String>> onData) {
     Map<String, Object> dataMsg = (Map<String, Object>) pushMessage.get("data");
     if (dataMsg != null) {
-      Map<String, String> data = dataMsg.entrySet().stream().filter(e -> e.getValue() != null).collect(toMap(Map.Entry::getKey, Object::toString));
+      Map<String, String> data = dataMsg.entrySet().stream().filter(e -> e.getValue() != null).collect(toMap(Map.Entry::getKey, e -> e.getValue().toString()));
       onData.accept(data);
     }
   }
@@ -0,0 +1,290 @@
+package app.hypi.fn;
+
+import com.google.firebase.messaging.AndroidConfig;
+import com.google.firebase.messaging.ApnsConfig;
+import com.google.firebase.messaging.Message;
+import com.google.firebase.messaging.MulticastMessage;
+import com.google.firebase.messaging.Notification;
+import com.google.firebase.messaging.WebpushConfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static java.lang.String.format;
+
+/**
+ * A push message translated once into FCM's immutable config objects.
+ * A part of the message (data, notification, android, webpush or apns) containing {@code ${name}} placeholders keeps
+ * its source and is rebuilt with the variables of each send, every other part is built once and shared by all sends.
+ */
+final class MessageTemplate {
+  //Messages by content, templates registered under an ID are kept apart in each app's Registry
+  private static final Cache cache = new Cache(Settings.integer("FCM_TEMPLATE_CACHE_SIZE", 1000), 16);
+  private final Map<String, Object> source;
+  private final boolean placeholders;
+  private final Part<Map<String, String>> data;
+  private final Part<Notification> notification;
+  private final Part<AndroidConfig> android;
+  private final Part<WebpushConfig> webpush;
+  private final Part<ApnsConfig> apns;
+
+  private MessageTemplate(Map<String, Object> source, boolean placeholders) {
+    this.source = source;
+    this.placeholders = placeholders;
+    this.data = new Part<>(source, placeholders, "data", pm -> build(out -> Main.buildMsgData(pm, out::set)));
+    this.notification = new Part<>(source, placeholders, "notification", pm -> build(out -> Main.buildNotification(pm, b -> out.set(b.build()))));
+    this.android = new Part<>(source, placeholders, "android", pm -> build(out -> Main.buildAndroid(pm, b -> out.set(b.build()))));
+    this.webpush = new Part<>(source, placeholders, "webpush", pm -> build(out -> Main.buildWeb(pm, b -> out.set(b.build()))));
+    this.apns = new Part<>(source, placeholders, "apns", pm -> build(out -> Main.buildApns(pm, b -> out.set(b.build()))));
+  }
+
+  /**
+   * Translate the message without caching it, placeholders are not replaced.
+   */
+  static MessageTemplate compile(Map<String, Object> pushMessage) {
+    return new MessageTemplate(pushMessage, false);
+  }
+
+  /**
+   * @return the cached translation of an identical message, compiling and caching it if there isn't one
+   */
+  static MessageTemplate cached(Map<String, Object> pushMessage) {
+    //The key is a copy so a caller changing its map afterwards can't corrupt the cache
+    Key key = new Key(immutableCopy(pushMessage));
+    MessageTemplate template = cache.get(key);
+    if (template != null) return template;
+    return cache.putIfAbsent(key, new MessageTemplate(key.message, true));
+  }
+
+  Message.Builder toMessage(Map<String, ?> vars) {
+    Message.Builder message = Message.builder();
+    data.apply(vars, message::putAllData);
+    notification.apply(vars, message::setNotification);
+    android.apply(vars, message::setAndroidConfig);
+    webpush.apply(vars, message::setWebpushConfig);
+    apns.apply(vars, message::setApnsConfig);
+    return message;
+  }
+
+  MulticastMessage.Builder toMulticast(Map<String, ?> vars) {
+    MulticastMessage.Builder message = MulticastMessage.builder();
+    data.apply(vars, message::putAllData);
+    notification.apply(vars, message::setNotification);
+    android.apply(vars, message::setAndroidConfig);
+    webpush.apply(vars, message::setWebpushConfig);
+    apns.apply(vars, message::setApnsConfig);
+    return message;
+  }
+
+  /**
+   * @return the message as given, with the variables filled in when placeholders are enabled
+   */
+  @SuppressWarnings("unchecked")
+  Map<String, Object> toSource(Map<String, ?> vars) {
+    return placeholders ? (Map<String, Object>) substitute(source, vars) : source;
+  }
+
+  /**
+   * Templates registered under an ID by one Firebase app, so tenants can't see each other's templates.
+   * Registrations are not evicted to make room for other templates, an app can register at most {@code maxSize}.
+   */
+  static final class Registry {
+    private final Map<String, MessageTemplate> templates = new HashMap<>();
+    private final int maxSize;
+
+    Registry(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    /**
+     * @param pushMessage the message to (re)register under the ID, or null to use the message already registered
+     */
+    synchronized MessageTemplate get(String templateId, Map<String, Object> pushMessage) {
+      MessageTemplate template = templates.get(templateId);
+      if (pushMessage == null) {
+        if (template == null) {
+          throw new IllegalArgumentException(format("No template %s registered, pass the message with template_id to register it", templateId));
+        }
+        return template;
+      }
+      if (template == null && templates.size() >= maxSize) {
+        throw new IllegalArgumentException(format("Template %s not registered, at most %d templates can be registered", templateId, maxSize));
+      }
+      if (template == null || !template.source.equals(pushMessage)) {
+        template = new MessageTemplate(pushMessage, true);
+        templates.put(templateId, template);
+      }
+      return template;
+    }
+  }
+
+  /**
+   * A message compared by content, its hash computed once.
+   */
+  private static final class Key {
+    private final Map<String, Object> message;
+    private final int hash;
+
+    Key(Map<String, Object> message) {
+      this.message = message;
+      this.hash = message.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key other && hash == other.hash && message.equals(other.message);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  /**
+   * LRU maps each guarding a stripe of the keys, so sends of different messages don't wait on one lock.
+   */
+  private static final class Cache {
+    private final Map<Key, MessageTemplate>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    Cache(int maxSize, int stripeCount) {
+      int perStripe = Math.max(1, maxSize / stripeCount);
+      stripes = new Map[stripeCount];
+      for (int i = 0; i < stripeCount; i++) {
+        stripes[i] = new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Key, MessageTemplate> eldest) {
+            return size() > perStripe;
+          }
+        };
+      }
+    }
+
+    MessageTemplate get(Key key) {
+      Map<Key, MessageTemplate> stripe = stripe(key);
+      synchronized (stripe) {
+        return stripe.get(key);
+      }
+    }
+
+    /**
+     * @return the template already cached under the key if another thread got there first, else the given one
+     */
+    MessageTemplate putIfAbsent(Key key, MessageTemplate template) {
+      Map<Key, MessageTemplate> stripe = stripe(key);
+      synchronized (stripe) {
+        MessageTemplate existing = stripe.putIfAbsent(key, template);
+        return existing == null ? template : existing;
+      }
+    }
+
+    private Map<Key, MessageTemplate> stripe(Key key) {
+      int h = key.hash ^ (key.hash >>> 16);
+      return stripes[Math.floorMod(h, stripes.length)];
+    }
+  }
+
+  /**
+   * @return a deep copy of the value that can't be modified, nested maps and lists included
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> T immutableCopy(T value) {
+    if (value instanceof Map<?, ?> map) {
+      Map<Object, Object> copy = new LinkedHashMap<>(map.size());
+      map.forEach((k, v) -> copy.put(k, immutableCopy(v)));
+      return (T) Collections.unmodifiableMap(copy);
+    }
+    if (value instanceof List<?> list) {
+      List<Object> copy = new ArrayList<>(list.size());
+      for (Object v : list) copy.add(immutableCopy(v));
+      return (T) Collections.unmodifiableList(copy);
+    }
+    return value;
+  }
+
+  private static <T> T build(Consumer<AtomicReference<T>> builder) {
+    AtomicReference<T> out = new AtomicReference<>();
+    builder.accept(out);
+    return out.get();
+  }
+
+  /**
+   * @return a copy of the value with the placeholders in every string replaced
+   */
+  @SuppressWarnings("unchecked")
+  static Object substitute(Object value, Map<String, ?> vars) {
+    if (value instanceof String str) return substitute(str, vars);
+    if (value instanceof Map<?, ?> map) {
+      Map<String, Object> copy = new LinkedHashMap<>(map.size());
+      ((Map<String, Object>) map).forEach((k, v) -> copy.put(k, substitute(v, vars)));
+      return copy;
+    }
+    if (value instanceof List<?> list) {
+      List<Object> copy = new ArrayList<>(list.size());
+      for (Object v : list) copy.add(substitute(v, vars));
+      return copy;
+    }
+    return value;
+  }
+
+  private static String substitute(String str, Map<String, ?> vars) {
+    int start = str.indexOf("${");
+    if (start < 0) return str;
+    StringBuilder out = new StringBuilder(str.length() + 16);
+    int from = 0;
+    while (start >= 0) {
+      int end = str.indexOf('}', start + 2);
+      if (end < 0) break;
+      String name = str.substring(start + 2, end);
+      Object v = vars == null ? null : vars.get(name);
+      if (v == null) throw new IllegalArgumentException(format("Missing template variable %s", name));
+      out.append(str, from, start).append(v);
+      from = end + 1;
+      start = str.indexOf("${", from);
+    }
+    return out.append(str, from, str.length()).toString();
+  }
+
+  private static boolean hasPlaceholders(Object value) {
+    if (value instanceof String str) return str.contains("${");
+    if (value instanceof Map<?, ?> map) return map.values().stream().anyMatch(MessageTemplate::hasPlaceholders);
+    if (value instanceof List<?> list) return list.stream().anyMatch(MessageTemplate::hasPlaceholders);
+    return false;
+  }
+
+  /**
+   * One part of the message, either built up front or rebuilt per send when it has placeholders.
+   */
+  private static final class Part<T> {
+    private final String key;
+    private final Object source;
+    private final Function<Map<String, Object>, T> builder;
+    private final T built;
+
+    Part(Map<String, Object> pushMessage, boolean placeholders, String key, Function<Map<String, Object>, T> builder) {
+      this.key = key;
+      this.builder = builder;
+      Object part = pushMessage.get(key);
+      if (placeholders && hasPlaceholders(part)) {
+        this.source = part;
+        this.built = null;
+      } else {
+        this.source = null;
+        this.built = part == null ? null : builder.apply(pushMessage);
+      }
+    }
+
+    void apply(Map<String, ?> vars, Consumer<T> onPart) {
+      T value = source == null ? built : builder.apply(Map.of(key, substitute(source, vars)));
+      if (value != null) onPart.accept(value);
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package app.hypi.fn;
+
+import com.google.firebase.messaging.MessagingErrorCode;
+
+import java.security.MessageDigest;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Process wide counters and latency histograms, reported by the {@code metrics} action.
+ * They cover every tenant served by the process, so the action is only answered for callers holding FCM_METRICS_KEY.
+ * <p>
+ * Recording is a few {@link LongAdder} increments so it can stay on for every call. Latencies go into power of two
+ * buckets, percentiles are reported as the upper bound of the bucket they fall in, so within a factor of two.
+ */
+final class Metrics {
+  /**
+   * The parts of an invocation that are timed separately.
+   */
+  enum Stage {
+    //Looking up or initializing the Firebase app for the service account
+    APP("app"),
+    //One request to Hypi for a page of tokens, cache hits aren't recorded
+    FIND_TOKEN("findToken"),
+    //Translating the message for one FCM call
+    BUILD("build"),
+    //One FCM call, from when the throttle lets it start until FCM answers
+    FCM("fcm");
+
+    private final String label;
+
+    Stage(String label) {
+      this.label = label;
+    }
+  }
+
+  private static final Map<Stage, Histogram> stages = new EnumMap<>(Stage.class);
+  private static final Map<String, ActionStats> actions = new ConcurrentHashMap<>();
+  private static final Map<MessagingErrorCode, LongAdder> fcmErrors = new ConcurrentHashMap<>();
+  //Errors FCM reported without a code, e.g. network failures
+  private static final LongAdder fcmErrorsWithoutCode = new LongAdder();
+
+  static {
+    for (Stage stage : Stage.values()) stages.put(stage, new Histogram());
+  }
+
+  private Metrics() {
+  }
+
+  static void record(Stage stage, long startNanos) {
+    stages.get(stage).record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Record the time until {@code future} completes against {@code stage}, whether it succeeds or not.
+   */
+  static <T> CompletableFuture<T> time(Stage stage, CompletableFuture<T> future) {
+    long start = System.nanoTime();
+    future.whenComplete((v, err) -> record(stage, start));
+    return future;
+  }
+
+  /**
+   * Count an invocation of {@code action} and its latency once {@code result} completes.
+   */
+  static void action(String action, long startNanos, CompletableFuture<?> result) {
+    ActionStats stats = actions.computeIfAbsent(action, k -> new ActionStats());
+    stats.calls.increment();
+    result.whenComplete((v, err) -> {
+      stats.latency.record(System.nanoTime() - startNanos);
+      if (err != null) stats.errors.increment();
+    });
+  }
+
+  /**
+   * Count a message FCM rejected, once per token for multicast sends.
+   */
+  static void fcmError(MessagingErrorCode code) {
+    if (code == null) fcmErrorsWithoutCode.increment();
+    else fcmErrors.computeIfAbsent(code, k -> new LongAdder()).increment();
+  }
+
+  /**
+   * Check that {@code key} is the operator's key before showing the process wide numbers to a caller.
+   *
+   * @param configured FCM_METRICS_KEY, null when the action is disabled
+   */
+  static void authorize(String configured, String key) {
+    if (configured == null) throw new IllegalStateException("The metrics action is disabled, set FCM_METRICS_KEY to enable it");
+    if (key == null || !MessageDigest.isEqual(configured.getBytes(UTF_8), key.getBytes(UTF_8))) {
+      throw new IllegalArgumentException("metrics_key doesn't match FCM_METRICS_KEY");
+    }
+  }
+
+  static Map<String, Object> snapshot() {
+    Map<String, Object> snapshot = new LinkedHashMap<>();
+    Map<String, Object> actionStats = new TreeMap<>();
+    actions.forEach((action, stats) -> actionStats.put(action, stats.snapshot()));
+    snapshot.put("actions", actionStats);
+    Map<String, Object> stageStats = new LinkedHashMap<>();
+    stages.forEach((stage, histogram) -> stageStats.put(stage.label, histogram.snapshot()));
+    snapshot.put("stages", stageStats);
+    Map<String, Long> errors = new TreeMap<>();
+    fcmErrors.forEach((code, count) -> errors.put(code.name(), count.sum()));
+    if (fcmErrorsWithoutCode.sum() > 0) errors.put("NONE", fcmErrorsWithoutCode.sum());
+    snapshot.put("fcmErrors", errors);
+    return snapshot;
+  }
+
+  private static final class ActionStats {
+    final LongAdder calls = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final Histogram latency = new Histogram();
+
+    Map<String, Object> snapshot() {
+      Map<String, Object> snapshot = new LinkedHashMap<>();
+      snapshot.put("calls", calls.sum());
+      snapshot.put("errors", errors.sum());
+      snapshot.put("latency", latency.snapshot());
+      return snapshot;
+    }
+  }
+
+  /**
+   * Bucket i counts durations of less than 2^i nanoseconds that didn't fit in bucket i - 1.
+   */
+  static final class Histogram {
+    private final LongAdder[] buckets = new LongAdder[64];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    Histogram() {
+      for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+    }
+
+    void record(long nanos) {
+      if (nanos < 0) nanos = 0;
+      buckets[Math.min(63, 64 - Long.numberOfLeadingZeros(nanos))].increment();
+      sum.add(nanos);
+      max.accumulate(nanos);
+    }
+
+    Map<String, Object> snapshot() {
+      long[] counts = new long[buckets.length];
+      long count = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        counts[i] = buckets[i].sum();
+        count += counts[i];
+      }
+      long maxNanos = max.get();
+      Map<String, Object> snapshot = new LinkedHashMap<>();
+      snapshot.put("count", count);
+      snapshot.put("meanMicros", count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(sum.sum() / count));
+      snapshot.put("p50Micros", percentile(counts, count, 0.5, maxNanos));
+      snapshot.put("p90Micros", percentile(counts, count, 0.9, maxNanos));
+      snapshot.put("p99Micros", percentile(counts, count, 0.99, maxNanos));
+      snapshot.put("maxMicros", TimeUnit.NANOSECONDS.toMicros(maxNanos));
+      return snapshot;
+    }
+
+    //The bucket's upper bound, but never more than the largest value recorded
+    private static long percentile(long[] counts, long count, double percentile, long maxNanos) {
+      if (count == 0) return 0;
+      long rank = (long) Math.ceil(count * percentile);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) return TimeUnit.NANOSECONDS.toMicros(Math.min(maxNanos, i == 63 ? Long.MAX_VALUE : 1L << i));
+      }
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package app.hypi.fn;
+
+import com.google.firebase.messaging.FirebaseMessagingException;
+import com.google.firebase.messaging.MessagingErrorCode;
+import com.google.firebase.messaging.SendResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The merged outcome of sending one message to many tokens, shaped like a {@link com.google.firebase.messaging.BatchResponse}
+ * but with each response carrying the token it was for, so results from several FCM calls can be combined.
+ */
+public class MulticastResult {
+  private final List<TokenResponse> responses;
+  private final int successCount;
+
+  MulticastResult(List<TokenResponse> responses) {
+    this.responses = Collections.unmodifiableList(responses);
+    this.successCount = (int) responses.stream().filter(TokenResponse::isSuccessful).count();
+  }
+
+  public List<TokenResponse> getResponses() {
+    return responses;
+  }
+
+  public int getSuccessCount() {
+    return successCount;
+  }
+
+  public int getFailureCount() {
+    return responses.size() - successCount;
+  }
+
+  public List<String> getFailedTokens() {
+    List<String> failed = new ArrayList<>(getFailureCount());
+    for (TokenResponse response : responses) {
+      if (!response.isSuccessful() && response.token() != null) failed.add(response.token());
+    }
+    return failed;
+  }
+
+  /**
+   * @return tokens FCM reported as unregistered or invalid, now or on an earlier send, so they can be removed from Hypi
+   */
+  public List<String> getDeadTokens() {
+    List<String> dead = new ArrayList<>();
+    for (TokenResponse response : responses) {
+      if (response.isDead()) dead.add(response.token());
+    }
+    return dead;
+  }
+
+  /**
+   * @param id        the ID of the Hypi object the token was read from, when sending by token_src_ids
+   * @param token     null if no token is stored for the ID
+   * @param messageId set if FCM accepted the message for this token
+   * @param errorCode set if FCM rejected the message for this token, may be null for errors without an FCM code
+   */
+  public record TokenResponse(String id, String token, String messageId, MessagingErrorCode errorCode, String error) {
+    static TokenResponse of(String token, SendResponse response) {
+      return response.isSuccessful()
+          ? new TokenResponse(null, token, response.getMessageId(), null, null)
+          : failed(token, response.getException());
+    }
+
+    static TokenResponse failed(String token, FirebaseMessagingException e) {
+      return new TokenResponse(null, token, null, e.getMessagingErrorCode(), e.getMessage());
+    }
+
+    static TokenResponse skipped(String token) {
+      return new TokenResponse(null, token, null, MessagingErrorCode.UNREGISTERED, "Not sent, FCM previously reported this token as unregistered");
+    }
+
+    static TokenResponse missing(String id) {
+      return new TokenResponse(id, null, null, null, "Not sent, no token is stored for this ID");
+    }
+
+    TokenResponse withId(String id) {
+      return new TokenResponse(id, token, messageId, errorCode, error);
+    }
+
+    public boolean isSuccessful() {
+      return messageId != null;
+    }
+
+    public boolean isDead() {
+      return DeadTokens.isDeadTokenError(errorCode, error);
+    }
+  }
+}
@@ -0,0 +1,536 @@
+package app.hypi.fn;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.firebase.messaging.FirebaseMessaging;
+import com.google.firebase.messaging.FirebaseMessagingException;
+import com.google.firebase.messaging.Message;
+import com.google.firebase.messaging.SendResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Messages accepted for one Firebase app but not yet delivered to FCM, kept on local disk and sent in the background.
+ * <p>
+ * Records are appended to numbered segment files, each framed as its length, a CRC32 and the JSON of the message with
+ * its token or topic. A checkpoint file holds the position up to which every record has been handled, segments before
+ * it are deleted. Records are sent in batches through the app's {@link Throttle}, those FCM still rejects as
+ * overloaded or unavailable are appended again and draining backs off while every message of a batch is. Messages FCM
+ * rejects for good, other than for a dead token, are moved to a dead letter file for an operator to look at.
+ * <p>
+ * Appends are written and forced to disk by a writer thread, appends made while it is busy are written together and
+ * share one fsync. Appending only queues the record, all file access happens on the writer and drain threads under a
+ * lock of its own, so a caller never waits for the disk.
+ * <p>
+ * The log is replayed from the checkpoint when the app is next initialized, including by a new process.
+ * Delivery is at least once, a batch sent just before a crash is sent again. Only one process may use a directory.
+ */
+class Outbox {
+  private static final Logger log = LoggerFactory.getLogger(Outbox.class);
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String DEAD_LETTER_FILE = "dead-letter.log";
+  private static final int HEADER_BYTES = 8;
+  //Reads the logs and does the bookkeeping for every outbox, the sends themselves are asynchronous
+  private static final ScheduledExecutorService drainer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "fcm-outbox");
+    t.setDaemon(true);
+    return t;
+  });
+  //Writes and forces appends for every outbox, so no fsync happens on a caller's or FCM's thread
+  private static final ExecutorService appender = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "fcm-outbox-writer");
+    t.setDaemon(true);
+    return t;
+  });
+  private final Path dir;
+  private final FirebaseMessaging messaging;
+  private final Throttle throttle;
+  private final Consumer<String> onDeadToken;
+  private final long segmentBytes;
+  private final boolean sync;
+  private final int batchSize;
+  private final long retryBaseMillis;
+  private final long retryMaxMillis;
+  private final Queue<PendingAppend> appends = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean appendScheduled = new AtomicBoolean();
+  //Guards the files and the fields below, taken by the writer and the drainer but never by append
+  private final Object io = new Object();
+  private FileChannel writer;
+  private long writerSegment;
+  private long checkpointSegment;
+  private long checkpointOffset;
+  //True while a drain is scheduled or running, there is at most one per outbox
+  private boolean draining;
+  private long retryMillis;
+  private volatile boolean closed;
+
+  /**
+   * @param onDeadToken called with tokens FCM reported as unregistered when their message was drained
+   */
+  Outbox(Path dir, FirebaseMessaging messaging, Throttle throttle, Consumer<String> onDeadToken) {
+    this(
+        dir,
+        messaging,
+        throttle,
+        onDeadToken,
+        Settings.number("FCM_OUTBOX_SEGMENT_BYTES", 64L << 20),
+        Settings.bool("FCM_OUTBOX_SYNC", true),
+        Settings.integer("FCM_OUTBOX_BATCH_SIZE", Main.MULTICAST_LIMIT),
+        Duration.ofMillis(Settings.number("FCM_OUTBOX_RETRY_MS", 1000)),
+        Duration.ofMillis(Settings.number("FCM_RETRY_MAX_MS", 30_000))
+    );
+  }
+
+  /**
+   * @param sync when true every append is forced to disk before the send is acknowledged
+   */
+  Outbox(Path dir, FirebaseMessaging messaging, Throttle throttle, Consumer<String> onDeadToken, long segmentBytes, boolean sync, int batchSize, Duration retryBase, Duration retryMax) {
+    this.dir = dir;
+    this.messaging = messaging;
+    this.throttle = throttle;
+    this.onDeadToken = onDeadToken;
+    this.segmentBytes = segmentBytes;
+    this.sync = sync;
+    this.batchSize = Math.max(1, Math.min(batchSize, Main.MULTICAST_LIMIT));
+    this.retryBaseMillis = retryBase.toMillis();
+    this.retryMaxMillis = retryMax.toMillis();
+    try {
+      Files.createDirectories(dir);
+      List<Long> segments = segments();
+      readCheckpoint(segments.isEmpty() ? 1 : segments.get(0));
+      //Never write before the checkpoint, that would never be read
+      writerSegment = Math.max(checkpointSegment, segments.isEmpty() ? 1 : segments.get(segments.size() - 1));
+      writer = FileChannel.open(segmentPath(writerSegment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      //A crash during an append leaves a partial record at the end, later records would be unreadable after it
+      long valid = validLength(writerSegment);
+      if (valid < writer.size()) {
+        log.warn("Truncating a partially written record at the end of {}", segmentPath(writerSegment));
+        writer.truncate(valid);
+      }
+      writer.position(valid);
+      if (checkpointSegment == writerSegment) checkpointOffset = Math.min(checkpointOffset, valid);
+    } catch (IOException e) {
+      throw new UncheckedIOException(String.format("Failed to open the outbox in %s, FCM_OUTBOX_DIR must be a writable directory", dir), e);
+    }
+    synchronized (io) {
+      scheduleDrain(0);
+    }
+  }
+
+  /**
+   * @return a record of a message for a single token or topic, as written to the log
+   */
+  static Map<String, Object> record(String target, String to, Map<String, Object> message) {
+    //Without one the message could never be sent, it would only be found when it is drained
+    if (to == null || to.isEmpty()) throw new IllegalArgumentException(String.format("No %s to send the message to", target));
+    Map<String, Object> record = new LinkedHashMap<>();
+    record.put(target, to);
+    record.put("message", message);
+    return record;
+  }
+
+  /**
+   * Write the record to the log.
+   *
+   * @return a future completed once the record is written, and forced to disk if FCM_OUTBOX_SYNC is on
+   */
+  CompletableFuture<Void> append(Map<String, Object> record) {
+    if (closed) throw new IllegalStateException("The outbox in " + dir + " is closed");
+    PendingAppend append = new PendingAppend(record, new CompletableFuture<>());
+    appends.add(append);
+    if (appendScheduled.compareAndSet(false, true)) appender.execute(this::writeAppends);
+    return append.written;
+  }
+
+  //Runs on the writer thread, writes every append made since the last time with one fsync
+  private void writeAppends() {
+    //Cleared before taking the queue, an append made from here on schedules another run
+    appendScheduled.set(false);
+    List<PendingAppend> batch = new ArrayList<>();
+    for (PendingAppend append; (append = appends.poll()) != null; ) batch.add(append);
+    if (batch.isEmpty()) return;
+    int written = 0;
+    IOException failure = null;
+    synchronized (io) {
+      if (closed) {
+        failure = new IOException("The outbox in " + dir + " is closed");
+      } else {
+        try {
+          for (PendingAppend append : batch) {
+            write(append.record);
+            written++;
+          }
+        } catch (IOException e) {
+          failure = e;
+        }
+        try {
+          if (sync && written > 0) writer.force(false);
+        } catch (IOException e) {
+          //What was written may or may not be on disk, it may be sent even though the caller is told it failed
+          written = 0;
+          failure = e;
+        }
+        if (written > 0) scheduleDrain(0);
+      }
+    }
+    for (int i = 0; i < batch.size(); i++) {
+      if (i < written) batch.get(i).written.complete(null);
+      else batch.get(i).written.completeExceptionally(new UncheckedIOException("Failed to write to the outbox in " + dir, failure));
+    }
+  }
+
+  void close() {
+    closed = true;
+    synchronized (io) {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        log.warn("Failed to close the outbox in {}", dir, e);
+      }
+    }
+  }
+
+  /**
+   * Write a record at the end of the log, the caller forces it to disk when FCM_OUTBOX_SYNC is on.
+   * Must hold the io lock.
+   */
+  private void write(Map<String, Object> record) throws IOException {
+    long start = writer.position();
+    try {
+      writeRecord(writer, record);
+    } catch (IOException e) {
+      //Don't leave a partial record for the next append to follow
+      writer.truncate(start);
+      writer.position(start);
+      throw e;
+    }
+    if (writer.position() >= segmentBytes) {
+      //The segment is complete, later forces only cover the next one
+      if (sync) writer.force(false);
+      writer.close();
+      writerSegment++;
+      writer = FileChannel.open(segmentPath(writerSegment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+  }
+
+  private static void writeRecord(FileChannel out, Map<String, Object> record) throws IOException {
+    byte[] body = mapper.writeValueAsBytes(record);
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(body.length).putInt((int) crc.getValue()).flip();
+    ByteBuffer payload = ByteBuffer.wrap(body);
+    while (payload.hasRemaining()) out.write(new ByteBuffer[]{header, payload});
+  }
+
+  /**
+   * Keep records FCM will never accept in the dead letter file instead of sending them again, framed like the log.
+   * Must hold the io lock.
+   */
+  private void deadLetter(List<Map<String, Object>> records) throws IOException {
+    if (records.isEmpty()) return;
+    log.error("Moving {} outbox messages to {}, first failure: {}", records.size(), dir.resolve(DEAD_LETTER_FILE), records.get(0).get("error"));
+    try (FileChannel out = FileChannel.open(dir.resolve(DEAD_LETTER_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      for (Map<String, Object> record : records) writeRecord(out, record);
+      if (sync) out.force(false);
+    }
+  }
+
+  private static Map<String, Object> withError(Map<String, Object> record, String error) {
+    Map<String, Object> rejected = new LinkedHashMap<>(record);
+    rejected.put("error", error);
+    return rejected;
+  }
+
+  //Must hold the io lock
+  private void scheduleDrain(long delayMillis) {
+    if (draining || closed) return;
+    draining = true;
+    drainer.schedule(this::drain, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  //Must hold the io lock
+  private void retryLater() {
+    retryMillis = retryMillis == 0 ? retryBaseMillis : Math.min(retryMaxMillis, retryMillis * 2);
+    draining = false;
+    scheduleDrain(retryMillis);
+  }
+
+  private void drain() {
+    Batch batch;
+    synchronized (io) {
+      if (closed) return;
+      try {
+        batch = readBatch();
+        if (batch.records.isEmpty()) {
+          //Nothing to send but unreadable or empty segments may have been skipped
+          checkpoint(batch);
+          draining = false;
+          return;
+        }
+      } catch (IOException e) {
+        log.error("Failed to read the outbox in {}", dir, e);
+        retryLater();
+        return;
+      }
+    }
+    List<Map<String, Object>> records = new ArrayList<>(batch.records.size());
+    List<Message> messages = new ArrayList<>(batch.records.size());
+    List<Map<String, Object>> invalid = new ArrayList<>();
+    for (Map<String, Object> record : batch.records) {
+      try {
+        messages.add(toMessage(record));
+        records.add(record);
+      } catch (RuntimeException e) {
+        log.error("Outbox record is not a valid message", e);
+        invalid.add(record);
+      }
+    }
+    if (messages.isEmpty()) {
+      drainer.execute(() -> onSent(batch, records, invalid, List.of(), null));
+      return;
+    }
+    throttle.sendEach(messages, subset -> Metrics.time(Metrics.Stage.FCM, Async.toCompletable(messaging.sendEachAsync(subset))))
+        .whenComplete((responses, err) -> drainer.execute(() -> onSent(batch, records, invalid, responses, err)));
+  }
+
+  /**
+   * @param invalid the records of the batch that aren't valid messages, kept once the batch is done with
+   */
+  private void onSent(Batch batch, List<Map<String, Object>> records, List<Map<String, Object>> invalid, List<SendResponse> responses, Throwable err) {
+    List<String> dead = new ArrayList<>();
+    synchronized (io) {
+      if (closed) return;
+      if (err != null && !isPermanent(Async.unwrap(err))) {
+        log.warn("Failed to deliver {} outbox messages from {}, retrying in the background", records.size(), dir, Async.unwrap(err));
+        retryLater();
+        return;
+      }
+      List<Map<String, Object>> retry = new ArrayList<>();
+      List<Map<String, Object>> rejected = new ArrayList<>();
+      for (Map<String, Object> record : invalid) rejected.add(withError(record, "Not a valid message"));
+      if (err != null) {
+        //FCM rejected the whole batch, sending it again would only fail again
+        FirebaseMessagingException e = (FirebaseMessagingException) Async.unwrap(err);
+        Metrics.fcmError(e.getMessagingErrorCode());
+        String reason = String.format("FCM code %s, with reason: %s", e.getMessagingErrorCode() != null ? e.getMessagingErrorCode() : e.getErrorCode(), e.getMessage());
+        for (Map<String, Object> record : records) rejected.add(withError(record, reason));
+        responses = List.of();
+      }
+      for (int i = 0; i < responses.size(); i++) {
+        SendResponse response = responses.get(i);
+        if (response.isSuccessful()) continue;
+        FirebaseMessagingException e = response.getException();
+        if (Throttle.isRetryable(e)) {
+          retry.add(records.get(i));
+          continue;
+        }
+        Metrics.fcmError(e.getMessagingErrorCode());
+        Object token = records.get(i).get("token");
+        if (token != null && DeadTokens.isDeadTokenError(e.getMessagingErrorCode(), e.getMessage())) {
+          dead.add(token.toString());
+        } else {
+          rejected.add(withError(records.get(i), String.format("FCM code %s, with reason: %s", e.getMessagingErrorCode(), e.getMessage())));
+        }
+      }
+      //FCM is still unavailable, leave the batch where it is rather than move it to the end of the log
+      if (!retry.isEmpty() && retry.size() == responses.size()) {
+        retryLater();
+        return;
+      }
+      try {
+        deadLetter(rejected);
+        for (Map<String, Object> record : retry) write(record);
+        //The records sent again must be on disk before the checkpoint moves past where they were
+        if (sync && !retry.isEmpty()) writer.force(false);
+        checkpoint(batch);
+      } catch (IOException e) {
+        log.error("Failed to update the outbox in {}", dir, e);
+        retryLater();
+        return;
+      }
+      retryMillis = 0;
+      draining = false;
+      scheduleDrain(0);
+    }
+    dead.forEach(onDeadToken);
+  }
+
+  /**
+   * Read up to a batch of records from the checkpoint, moving on to later segments as each one is read to the end.
+   * Must hold the io lock.
+   */
+  @SuppressWarnings("unchecked")
+  private Batch readBatch() throws IOException {
+    List<Map<String, Object>> records = new ArrayList<>();
+    long segment = checkpointSegment;
+    long offset = checkpointOffset;
+    while (records.size() < batchSize) {
+      Path path = segmentPath(segment);
+      long size = segment == writerSegment ? writer.position() : Files.exists(path) ? Files.size(path) : 0;
+      if (offset < size) {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+          while (records.size() < batchSize && offset < size) {
+            byte[] body = readRecord(in, offset, size);
+            if (body == null) {
+              log.error("Skipping the unreadable rest of {} from offset {}", path, offset);
+              offset = size;
+              break;
+            }
+            offset += HEADER_BYTES + body.length;
+            records.add(mapper.readValue(body, Map.class));
+          }
+        }
+      }
+      if (offset < size || segment >= writerSegment) break;
+      segment++;
+      offset = 0;
+    }
+    return new Batch(records, segment, offset);
+  }
+
+  /**
+   * @return the record's body, or null if the record at the offset is incomplete or corrupt
+   */
+  private static byte[] readRecord(FileChannel in, long offset, long size) throws IOException {
+    if (size - offset < HEADER_BYTES) return null;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    readFully(in, header, offset);
+    int length = header.flip().getInt();
+    int checksum = header.getInt();
+    if (length < 0 || length > size - offset - HEADER_BYTES) return null;
+    ByteBuffer body = ByteBuffer.allocate(length);
+    readFully(in, body, offset + HEADER_BYTES);
+    CRC32 crc = new CRC32();
+    crc.update(body.array());
+    return (int) crc.getValue() == checksum ? body.array() : null;
+  }
+
+  private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = in.read(buffer, position + buffer.position());
+      if (read < 0) throw new IOException("Unexpected end of outbox segment");
+    }
+  }
+
+  private long validLength(long segment) throws IOException {
+    long offset = 0;
+    try (FileChannel in = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+      long size = in.size();
+      byte[] body;
+      while (offset < size && (body = readRecord(in, offset, size)) != null) offset += HEADER_BYTES + body.length;
+    }
+    return offset;
+  }
+
+  /**
+   * Record that everything before the end of the batch is handled and delete the segments no longer needed.
+   * Must hold the io lock.
+   */
+  private void checkpoint(Batch batch) throws IOException {
+    if (batch.segment == checkpointSegment && batch.offset == checkpointOffset) return;
+    Path tmp = dir.resolve("checkpoint.tmp");
+    try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      out.write(ByteBuffer.wrap((batch.segment + " " + batch.offset).getBytes(UTF_8)));
+      if (sync) out.force(false);
+    }
+    Files.move(tmp, dir.resolve("checkpoint"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    for (long segment : segments()) {
+      if (segment < batch.segment) Files.deleteIfExists(segmentPath(segment));
+    }
+    checkpointSegment = batch.segment;
+    checkpointOffset = batch.offset;
+  }
+
+  private void readCheckpoint(long firstSegment) throws IOException {
+    Path path = dir.resolve("checkpoint");
+    checkpointSegment = firstSegment;
+    checkpointOffset = 0;
+    if (!Files.exists(path)) return;
+    String[] position = Files.readString(path, UTF_8).trim().split(" ");
+    try {
+      long segment = Long.parseLong(position[0]);
+      //The segment it points to may have been deleted after the checkpoint was written
+      if (segment >= firstSegment) {
+        checkpointSegment = segment;
+        checkpointOffset = Long.parseLong(position[1]);
+      }
+    } catch (RuntimeException e) {
+      log.error("Ignoring the unreadable checkpoint of the outbox in {}, pending messages may be sent again", dir, e);
+    }
+  }
+
+  private List<Long> segments() throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files
+          .map(p -> p.getFileName().toString())
+          .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+          .map(name -> Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+          .sorted()
+          .toList();
+    }
+  }
+
+  private Path segmentPath(long segment) {
+    return dir.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+  }
+
+  @SuppressWarnings("unchecked")
+  static Message toMessage(Map<String, Object> record) {
+    //The message was stored with its variables filled in, it is not a template any more
+    Message.Builder message = MessageTemplate.compile((Map<String, Object>) record.get("message")).toMessage(Map.of());
+    if (record.get("token") instanceof String token && !token.isEmpty()) message.setToken(token);
+    else if (record.get("topic") instanceof String topic && !topic.isEmpty()) message.setTopic(topic);
+    else throw new IllegalArgumentException("Outbox record has neither a token nor a topic");
+    return message.build();
+  }
+
+  /**
+   * @return true if FCM rejected a whole batch for a reason that doesn't go away by sending it again, such as an
+   * invalid message or a service account without permission. Failures without an FCM answer, e.g. network errors, aren't
+   */
+  static boolean isPermanent(Throwable err) {
+    if (!(err instanceof FirebaseMessagingException e) || Throttle.isRetryable(e)) return false;
+    if (e.getMessagingErrorCode() != null) return true;
+    return switch (e.getErrorCode()) {
+      case INVALID_ARGUMENT, FAILED_PRECONDITION, NOT_FOUND, PERMISSION_DENIED, UNAUTHENTICATED -> true;
+      default -> false;
+    };
+  }
+
+  /**
+   * @param segment the position just after the last record read
+   */
+  private record Batch(List<Map<String, Object>> records, long segment, long offset) {
+  }
+
+  private record PendingAppend(Map<String, Object> record, CompletableFuture<Void> written) {
+  }
+}
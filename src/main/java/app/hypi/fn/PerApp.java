@@ -0,0 +1,32 @@
+package app.hypi.fn;
+
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * State kept for each Firebase app, created on first use. The state is held by the app's registry entry so it goes
+ * away with the entry, evicting the app only drops it from the entry.
+ */
+final class PerApp<T> {
+  private final Function<FirebaseAppRegistry.Entry, T> factory;
+
+  PerApp(FirebaseAppRegistry registry, Function<FirebaseAppRegistry.Entry, T> factory) {
+    this(registry, factory, v -> {
+    });
+  }
+
+  /**
+   * @param onEviction called with the state of an app when it is evicted
+   */
+  PerApp(FirebaseAppRegistry registry, Function<FirebaseAppRegistry.Entry, T> factory, Consumer<T> onEviction) {
+    this.factory = factory;
+    registry.onEviction(entry -> {
+      T value = entry.removeState(this);
+      if (value != null) onEviction.accept(value);
+    });
+  }
+
+  T get(FirebaseAppRegistry.Entry app) {
+    return app.state(this, factory);
+  }
+}
@@ -0,0 +1,36 @@
+package app.hypi.fn;
+
+import static java.util.Optional.ofNullable;
+
+/**
+ * Process wide tuning knobs. These come from the container environment rather than the per-invocation {@code env}
+ * map because they configure state shared by every tenant served by this process.
+ * A JVM system property of the same name takes precedence, which is how benchmarks configure a forked JVM.
+ */
+final class Settings {
+  private Settings() {
+  }
+
+  static String str(String name, String defaultValue) {
+    return ofNullable(System.getProperty(name)).or(() -> ofNullable(System.getenv(name))).map(String::trim).filter(v -> !v.isEmpty()).orElse(defaultValue);
+  }
+
+  static int integer(String name, int defaultValue) {
+    return (int) number(name, defaultValue);
+  }
+
+  static long number(String name, long defaultValue) {
+    String value = str(name, null);
+    if (value == null) return defaultValue;
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalStateException(String.format("Environment variable %s must be a number but was %s", name, value));
+    }
+  }
+
+  static boolean bool(String name, boolean defaultValue) {
+    String value = str(name, null);
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+}
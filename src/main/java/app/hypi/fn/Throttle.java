@@ -0,0 +1,320 @@
+package app.hypi.fn;
+
+import com.google.firebase.IncomingHttpResponse;
+import com.google.firebase.messaging.BatchResponse;
+import com.google.firebase.messaging.FirebaseMessagingException;
+import com.google.firebase.messaging.MessagingErrorCode;
+import com.google.firebase.messaging.SendResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Paces the FCM calls made for one Firebase app and retries the ones that fail because FCM is overloaded.
+ * <p>
+ * Calls are admitted by a token bucket (FCM_RATE_PER_SECOND, off by default) and a concurrency limit that is adjusted
+ * AIMD style: it grows by one for every limit's worth of messages that succeed and halves when FCM answers
+ * QUOTA_EXCEEDED or UNAVAILABLE. Both count messages, a call sending many messages takes a permit for each, and one
+ * larger than the limit or the burst starts alone once everything before it is done. Calls that can't start yet wait
+ * in a queue, in order, without holding a thread.
+ * <p>
+ * Failures with a retryable {@link MessagingErrorCode} are retried after the delay FCM asks for in Retry-After, or an
+ * exponential backoff with full jitter otherwise.
+ */
+class Throttle {
+  private static final Logger log = LoggerFactory.getLogger(Throttle.class);
+  //Calls already in flight when FCM pushes back fail together, the limit is only halved once for them
+  private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private final String name;
+  private final double ratePerSecond;
+  private final double burst;
+  private final int maxLimit;
+  private final int maxAttempts;
+  private final long retryBaseMillis;
+  private final long retryMaxMillis;
+  private final Queue<Waiter> waiting = new ArrayDeque<>();
+  private final LongAdder queued = new LongAdder();
+  private final LongAdder overloaded = new LongAdder();
+  private final LongAdder retried = new LongAdder();
+  private double limit;
+  private int inFlight;
+  private double bucket;
+  private long refilledAt = System.nanoTime();
+  private boolean refillScheduled;
+  private long decreasedAt = System.nanoTime() - DECREASE_INTERVAL_NANOS;
+  private boolean draining;
+
+  Throttle(String name) {
+    this(
+        name,
+        Settings.integer("FCM_RATE_PER_SECOND", 0),
+        Settings.integer("FCM_RATE_BURST", Math.max(1, Settings.integer("FCM_RATE_PER_SECOND", 0))),
+        Settings.integer("FCM_MAX_CONCURRENCY", 1000),
+        Settings.integer("FCM_MAX_ATTEMPTS", 4),
+        Duration.ofMillis(Settings.number("FCM_RETRY_BASE_MS", 200)),
+        Duration.ofMillis(Settings.number("FCM_RETRY_MAX_MS", 30_000))
+    );
+  }
+
+  /**
+   * @param ratePerSecond messages admitted per second on average, 0 for no rate limit
+   * @param burst         messages that can be admitted at once after a quiet period
+   * @param maxLimit      the most messages in flight at once, the limit starts here and never grows past it
+   * @param maxAttempts   attempts per call, including the first
+   */
+  Throttle(String name, double ratePerSecond, double burst, int maxLimit, int maxAttempts, Duration retryBase, Duration retryMax) {
+    if (maxLimit < 1) throw new IllegalArgumentException("Concurrency limit must be at least 1");
+    this.name = name;
+    this.ratePerSecond = ratePerSecond;
+    this.burst = burst;
+    this.bucket = burst;
+    this.maxLimit = maxLimit;
+    this.limit = maxLimit;
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.retryBaseMillis = retryBase.toMillis();
+    this.retryMaxMillis = retryMax.toMillis();
+  }
+
+  /**
+   * Run a call sending one message, or one topic management request, once admitted, retrying it when it fails with a
+   * retryable error.
+   */
+  <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> call) {
+    return call(call, v -> false, 1, 1);
+  }
+
+  /**
+   * Send a batch through {@code send}, then resend only the items whose response failed with a retryable error until
+   * they succeed or run out of attempts. Each send is admitted as one message per item.
+   *
+   * @return the final response for every item, in the order of {@code items}
+   */
+  <I> CompletableFuture<List<SendResponse>> sendEach(List<I> items, Function<List<I>, CompletableFuture<BatchResponse>> send) {
+    return sendEach(items, send, 1);
+  }
+
+  private <I> CompletableFuture<List<SendResponse>> sendEach(List<I> items, Function<List<I>, CompletableFuture<BatchResponse>> send, int attempt) {
+    return call(() -> send.apply(items), Throttle::isOverloaded, items.size(), attempt).thenCompose(batch -> {
+      List<SendResponse> responses = new ArrayList<>(batch.getResponses());
+      List<Integer> failed = new ArrayList<>();
+      long delay = 0;
+      for (int i = 0; i < responses.size(); i++) {
+        SendResponse response = responses.get(i);
+        if (!response.isSuccessful() && isRetryable(response.getException())) {
+          failed.add(i);
+          delay = Math.max(delay, retryDelay(response.getException(), attempt));
+        }
+      }
+      if (failed.isEmpty() || attempt >= maxAttempts) return CompletableFuture.completedFuture(responses);
+      retried.add(failed.size());
+      log.warn("Retrying {} of {} messages for {} in {}ms", failed.size(), responses.size(), name, delay);
+      List<I> subset = new ArrayList<>(failed.size());
+      for (int i : failed) subset.add(items.get(i));
+      return after(delay).thenCompose(v -> sendEach(subset, send, attempt + 1)).thenApply(again -> {
+        for (int i = 0; i < failed.size(); i++) responses.set(failed.get(i), again.get(i));
+        return responses;
+      });
+    });
+  }
+
+  private <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> call, Predicate<T> overloadedResult, int weight, int attempt) {
+    return admit(call, overloadedResult, weight).handle((value, err) -> {
+      if (err == null) return CompletableFuture.completedFuture(value);
+      Throwable cause = Async.unwrap(err);
+      if (attempt >= maxAttempts || !(cause instanceof FirebaseMessagingException e) || !isRetryable(e)) {
+        return CompletableFuture.<T>failedFuture(cause);
+      }
+      long delay = retryDelay(e, attempt);
+      retried.increment();
+      log.warn("Retrying FCM call for {} in {}ms after {}", name, delay, e.getMessagingErrorCode());
+      return after(delay).thenCompose(v -> call(call, overloadedResult, weight, attempt + 1));
+    }).thenCompose(f -> f);
+  }
+
+  private <T> CompletableFuture<T> admit(Supplier<CompletableFuture<T>> call, Predicate<T> overloadedResult, int weight) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    Runnable start = () -> {
+      CompletableFuture<T> running;
+      try {
+        running = call.get();
+      } catch (Throwable e) {
+        running = CompletableFuture.failedFuture(e);
+      }
+      running.whenComplete((value, err) -> {
+        release(weight, err != null ? isOverload(Async.unwrap(err)) : overloadedResult.test(value));
+        if (err != null) result.completeExceptionally(err);
+        else result.complete(value);
+      });
+    };
+    synchronized (this) {
+      //Counts calls that had to wait for the limits, which is where throttling shows first
+      if (!waiting.isEmpty() || !canStart(weight)) queued.increment();
+      waiting.add(new Waiter(weight, start));
+    }
+    drain();
+    return result;
+  }
+
+  private void release(int weight, boolean overload) {
+    synchronized (this) {
+      inFlight -= weight;
+      long now = System.nanoTime();
+      if (overload) {
+        overloaded.increment();
+        if (now - decreasedAt >= DECREASE_INTERVAL_NANOS) {
+          decreasedAt = now;
+          limit = Math.max(1, limit / 2);
+          log.warn("FCM is throttling {}, concurrency limit reduced to {}", name, (int) limit);
+        }
+      } else if (limit < maxLimit) {
+        limit = Math.min(maxLimit, limit + weight / limit);
+      }
+    }
+    drain();
+  }
+
+  /**
+   * Start as many waiting calls as the limits allow. Only one thread starts calls at a time, calls that complete as
+   * soon as they start release their permits into the loop instead of starting the next call from inside their own
+   * completion, which would grow the stack with every queued call.
+   */
+  private void drain() {
+    synchronized (this) {
+      //The thread already draining sees whatever this call would have started
+      if (draining) return;
+      draining = true;
+    }
+    boolean idle = false;
+    try {
+      while (true) {
+        Waiter next;
+        synchronized (this) {
+          if (waiting.isEmpty() || !canStart(waiting.peek().weight)) {
+            idle = true;
+            draining = false;
+            scheduleRefill();
+            return;
+          }
+          next = waiting.poll();
+          inFlight += next.weight;
+          if (ratePerSecond > 0) bucket -= next.weight;
+        }
+        next.start.run();
+      }
+    } finally {
+      if (!idle) {
+        synchronized (this) {
+          draining = false;
+        }
+      }
+    }
+  }
+
+  //Must hold the lock. A call heavier than the limit or the burst waits until it can have all of them to itself
+  private boolean canStart(int weight) {
+    if (inFlight > 0 && inFlight + weight > (int) limit) return false;
+    if (ratePerSecond <= 0) return true;
+    long now = System.nanoTime();
+    bucket = Math.min(burst, bucket + (now - refilledAt) / 1e9 * ratePerSecond);
+    refilledAt = now;
+    return bucket >= Math.min(weight, burst);
+  }
+
+  //Must hold the lock, wakes the queue up when the bucket next has enough tokens if that is what it waits for
+  private void scheduleRefill() {
+    if (waiting.isEmpty() || refillScheduled || ratePerSecond <= 0) return;
+    double needed = Math.min(waiting.peek().weight, burst);
+    if (bucket >= needed) return;
+    refillScheduled = true;
+    long waitNanos = (long) Math.ceil((needed - bucket) / ratePerSecond * 1e9);
+    CompletableFuture.runAsync(() -> {
+      synchronized (this) {
+        refillScheduled = false;
+      }
+      drain();
+    }, CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS));
+  }
+
+  /**
+   * @return the delay FCM asked for, or the backoff for this attempt with full jitter
+   */
+  long retryDelay(FirebaseMessagingException e, int attempt) {
+    long retryAfter = retryAfterMillis(e.getHttpResponse());
+    if (retryAfter >= 0) return Math.min(retryAfter, retryMaxMillis);
+    long backoff = Math.min(retryMaxMillis, retryBaseMillis << Math.min(attempt - 1, 20));
+    return ThreadLocalRandom.current().nextLong(backoff + 1);
+  }
+
+  Map<String, Object> stats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    synchronized (this) {
+      stats.put("concurrencyLimit", (int) limit);
+      stats.put("inFlight", inFlight);
+      stats.put("waiting", waiting.size());
+    }
+    stats.put("queued", queued.sum());
+    stats.put("overloaded", overloaded.sum());
+    stats.put("retried", retried.sum());
+    return stats;
+  }
+
+  private static long retryAfterMillis(IncomingHttpResponse response) {
+    if (response == null) return -1;
+    Object header = response.getHeaders().get("retry-after");
+    if (header instanceof List<?> values) header = values.isEmpty() ? null : values.get(0);
+    if (header == null) return -1;
+    String value = header.toString().trim();
+    try {
+      return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+    } catch (NumberFormatException notSeconds) {
+      try {
+        return Math.max(0, Duration.between(ZonedDateTime.now(), ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME)).toMillis());
+      } catch (DateTimeParseException notDate) {
+        return -1;
+      }
+    }
+  }
+
+  private static CompletableFuture<Void> after(long delayMillis) {
+    return CompletableFuture.runAsync(() -> {
+    }, CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS));
+  }
+
+  static boolean isRetryable(FirebaseMessagingException e) {
+    MessagingErrorCode code = e.getMessagingErrorCode();
+    return code == MessagingErrorCode.QUOTA_EXCEEDED || code == MessagingErrorCode.UNAVAILABLE || code == MessagingErrorCode.INTERNAL;
+  }
+
+  private static boolean isOverload(Throwable e) {
+    if (!(e instanceof FirebaseMessagingException fme)) return false;
+    MessagingErrorCode code = fme.getMessagingErrorCode();
+    return code == MessagingErrorCode.QUOTA_EXCEEDED || code == MessagingErrorCode.UNAVAILABLE;
+  }
+
+  private record Waiter(int weight, Runnable start) {
+  }
+
+  private static boolean isOverloaded(BatchResponse batch) {
+    for (SendResponse response : batch.getResponses()) {
+      if (!response.isSuccessful() && isOverload(response.getException())) return true;
+    }
+    return false;
+  }
+}
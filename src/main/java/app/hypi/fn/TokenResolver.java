@@ -0,0 +1,366 @@
+package app.hypi.fn;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.hypi.arc.base.JSON;
+import io.hypi.arc.base.http.HttpParams;
+import io.hypi.arc.base.http.HypiHttpClient;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+
+/**
+ * Looks up device tokens stored in a Hypi instance and caches the result.
+ * Concurrent lookups of the same token share one request, tokens that don't exist are cached for a shorter time so
+ * a device registering shortly after is picked up. Failed lookups aren't cached.
+ * A lookup is only reused for callers with the same Hypi token, since what a caller can read depends on it.
+ * Entries are kept per location so invalidating a location drops it for every caller, and indexed by the token they
+ * found so invalidating a token doesn't scan the cache.
+ */
+class TokenResolver {
+  private static final Pattern graphqlName = Pattern.compile("[_A-Za-z][_0-9A-Za-z]*");
+  private final Graphql graphql;
+  private final long ttlNanos;
+  private final long missingTtlNanos;
+  //Location to the lookups made there, by the digest of the caller's Hypi token
+  private final Map<Key, Map<String, CachedToken>> cache;
+  //Token to the locations with a loaded lookup that found it, guarded by the cache's lock
+  private final Map<String, Set<Key>> locations = new HashMap<>();
+  private final int pageSize = Settings.integer("FCM_TOKEN_RESOLVE_PAGE_SIZE", 100);
+  private final int pageConcurrency = Settings.integer("FCM_TOKEN_RESOLVE_CONCURRENCY", 4);
+
+  TokenResolver(HypiHttpClient http) {
+    this(
+        graphql(http, Settings.str("HYPI_API_URL", "https://api.hypi.app/graphql")),
+        Settings.integer("FCM_TOKEN_CACHE_SIZE", 10_000),
+        Duration.ofSeconds(Settings.number("FCM_TOKEN_CACHE_TTL_SECONDS", 300)),
+        Duration.ofSeconds(Settings.number("FCM_TOKEN_CACHE_MISSING_TTL_SECONDS", 15))
+    );
+  }
+
+  TokenResolver(Graphql graphql, int maxSize, Duration ttl, Duration missingTtl) {
+    this.graphql = graphql;
+    this.ttlNanos = ttl.toNanos();
+    this.missingTtlNanos = missingTtl.toNanos();
+    this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Map<String, CachedToken>> eldest) {
+        if (size() <= maxSize) return false;
+        eldest.getValue().values().forEach(entry -> unindex(eldest.getKey(), entry, Map.of()));
+        return true;
+      }
+    };
+  }
+
+  /**
+   * @return a future completed with the token in {@code field} of the {@code type} object with the given ID, or null if
+   * there is no such object or the field is not set
+   */
+  CompletableFuture<String> resolve(String hypiToken, String instanceDomain, String type, String field, String id) {
+    return resolveAll(hypiToken, instanceDomain, type, field, List.of(id)).thenApply(found -> found.get(id));
+  }
+
+  /**
+   * Resolve the tokens of many objects of the same type. IDs not already cached are fetched in pages of
+   * FCM_TOKEN_RESOLVE_PAGE_SIZE, each page is one GraphQL request and up to FCM_TOKEN_RESOLVE_CONCURRENCY pages of
+   * this call are fetched at once. The limit is per call so a large call doesn't hold up other callers' lookups.
+   *
+   * @return a future completed with a map from ID to token, in the order the IDs were given. IDs without a token are left out
+   */
+  CompletableFuture<Map<String, String>> resolveAll(String hypiToken, String instanceDomain, String type, String field, List<String> ids) {
+    checkNames(type, field);
+    Map<String, CompletableFuture<String>> pending = new LinkedHashMap<>();
+    Map<String, CachedToken> claimed = new LinkedHashMap<>();
+    String scope = FirebaseAppRegistry.digest(hypiToken);
+    long now = System.nanoTime();
+    synchronized (cache) {
+      for (String id : ids) {
+        if (pending.containsKey(id)) continue;
+        Key key = new Key(instanceDomain, type, field, id);
+        Map<String, CachedToken> scopes = cache.computeIfAbsent(key, k -> new HashMap<>(2));
+        CachedToken cached = scopes.get(scope);
+        if (cached == null || !cached.isFresh(now)) {
+          CachedToken stale = scopes.put(scope, cached = new CachedToken());
+          if (stale != null) unindex(key, stale, scopes);
+          claimed.put(id, cached);
+        }
+        pending.put(id, cached.token);
+      }
+    }
+    List<String> misses = new ArrayList<>(claimed.keySet());
+    AsyncLimiter pages = new AsyncLimiter(pageConcurrency);
+    for (int i = 0; i < misses.size(); i += pageSize) {
+      List<String> page = misses.subList(i, Math.min(misses.size(), i + pageSize));
+      pages.submit(() -> fetch(hypiToken, instanceDomain, type, field, page)).whenComplete((found, err) -> {
+        for (String id : page) {
+          Key key = new Key(instanceDomain, type, field, id);
+          CachedToken entry = claimed.get(id);
+          Throwable failure = err != null ? err : found.failed().get(id);
+          if (failure != null) {
+            //Don't cache failures, the next caller tries again
+            remove(key, scope, entry);
+            entry.token.completeExceptionally(failure);
+          } else {
+            String token = found.tokens().get(id);
+            load(key, scope, entry, token);
+            entry.token.complete(token);
+          }
+        }
+      });
+    }
+    return CompletableFuture.allOf(pending.values().toArray(CompletableFuture[]::new)).thenApply(done -> {
+      Map<String, String> tokens = new LinkedHashMap<>();
+      pending.forEach((id, token) -> {
+        if (token.join() != null) tokens.put(id, token.join());
+      });
+      return tokens;
+    });
+  }
+
+  /**
+   * Evict the cached token stored at the given location.
+   *
+   * @return true if there was a cached entry
+   */
+  boolean invalidate(String instanceDomain, String type, String field, String id) {
+    Key key = new Key(instanceDomain, type, field, id);
+    synchronized (cache) {
+      Map<String, CachedToken> scopes = cache.remove(key);
+      if (scopes == null) return false;
+      scopes.values().forEach(entry -> unindex(key, entry, Map.of()));
+      return true;
+    }
+  }
+
+  /**
+   * Evict every cached location that resolved to the given token, for example after FCM reports it is no longer registered.
+   *
+   * @return the number of entries evicted
+   */
+  int invalidateToken(String token) {
+    int evicted = 0;
+    synchronized (cache) {
+      Set<Key> keys = locations.remove(token);
+      if (keys == null) return 0;
+      for (Key key : keys) {
+        Map<String, CachedToken> scopes = cache.get(key);
+        if (scopes == null) continue;
+        for (Iterator<CachedToken> entries = scopes.values().iterator(); entries.hasNext(); ) {
+          if (token.equals(entries.next().found)) {
+            entries.remove();
+            evicted++;
+          }
+        }
+        if (scopes.isEmpty()) cache.remove(key);
+      }
+    }
+    return evicted;
+  }
+
+  private void load(Key key, String scope, CachedToken entry, String token) {
+    synchronized (cache) {
+      entry.found = token;
+      entry.expiresAt = System.nanoTime() + (token == null ? missingTtlNanos : ttlNanos);
+      entry.loaded = true;
+      //Only index the entry if it is still cached, it may have been invalidated or evicted while it was fetched
+      Map<String, CachedToken> scopes = cache.get(key);
+      if (token != null && scopes != null && scopes.get(scope) == entry) locations.computeIfAbsent(token, t -> new HashSet<>(2)).add(key);
+    }
+  }
+
+  private void remove(Key key, String scope, CachedToken entry) {
+    synchronized (cache) {
+      Map<String, CachedToken> scopes = cache.get(key);
+      if (scopes != null && scopes.remove(scope, entry) && scopes.isEmpty()) cache.remove(key);
+    }
+  }
+
+  /**
+   * Called with the cache's lock held once {@code entry} is no longer cached at {@code key}.
+   *
+   * @param remaining the lookups still cached at key, another caller's may have found the same token
+   */
+  private void unindex(Key key, CachedToken entry, Map<String, CachedToken> remaining) {
+    if (entry.found == null) return;
+    Set<Key> keys = locations.get(entry.found);
+    if (keys == null) return;
+    for (CachedToken other : remaining.values()) {
+      if (entry.found.equals(other.found)) return;
+    }
+    keys.remove(key);
+    if (keys.isEmpty()) locations.remove(entry.found);
+  }
+
+  /**
+   * Fetch a page of tokens in one request, each ID is queried under an alias of its position in the page.
+   */
+  private CompletableFuture<Fetched> fetch(String hypiToken, String instanceDomain, String type, String field, List<String> ids) {
+    //The IDs come from the caller, they are passed as variables rather than written into the query
+    ObjectNode body = JsonNodeFactory.instance.objectNode();
+    ObjectNode variables = body.putObject("variables");
+    StringBuilder params = new StringBuilder();
+    StringBuilder gets = new StringBuilder();
+    for (int i = 0; i < ids.size(); i++) {
+      variables.put("id" + i, ids.get(i));
+      params.append(i == 0 ? "" : ", ").append(format("$id%d: String!", i));
+      gets.append(format("  t%d: get(type: %s, id: $id%d) {\n    ... on %s {\n      %s\n    }\n  }\n", i, type, i, type, field));
+    }
+    body.put("query", format("query(%s) {\n%s}\n", params, gets));
+    return Metrics.time(Metrics.Stage.FIND_TOKEN, graphql.post(hypiToken, instanceDomain, body)).thenApply(node -> parseGet(node, ids, field));
+  }
+
+  /**
+   * Read the response to {@link #fetch}. An alias that is null is an object that doesn't exist, an error reported
+   * against an alias fails only that ID and any other error, or no data, fails the whole page.
+   */
+  static Fetched parseGet(JsonNode node, List<String> ids, String field) {
+    Map<String, RuntimeException> failed = new HashMap<>();
+    for (JsonNode error : node.path("errors")) {
+      String alias = error.path("path").path(0).asText("");
+      int i = alias.startsWith("t") ? parseIndex(alias.substring(1)) : -1;
+      if (i < 0 || i >= ids.size()) throw new IllegalStateException(format("Hypi get failed: %s", node.path("errors")));
+      failed.put(ids.get(i), new IllegalStateException(format("Hypi get failed: %s", error.path("message").asText())));
+    }
+    JsonNode data = node.path("data");
+    if (!data.isObject()) throw new IllegalStateException(format("Hypi get failed: %s", node.path("errors")));
+    Map<String, String> tokens = new HashMap<>();
+    for (int i = 0; i < ids.size(); i++) {
+      String id = ids.get(i);
+      if (failed.containsKey(id)) continue;
+      JsonNode entity = data.get("t" + i);
+      if (entity == null) {
+        failed.put(id, new IllegalStateException(format("Hypi get returned nothing for %s", id)));
+        continue;
+      }
+      JsonNode token = entity.path(field);
+      if (token.isTextual() && !token.asText().isEmpty()) tokens.put(id, token.asText());
+    }
+    return new Fetched(tokens, failed);
+  }
+
+  private static int parseIndex(String index) {
+    try {
+      return Integer.parseInt(index);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Read one page of the tokens stored in {@code field} of the {@code type} objects matching {@code arcql}.
+   * Pages are not cached, they are meant to be streamed through once.
+   *
+   * @param after the cursor of the previous page, null for the first page
+   */
+  CompletableFuture<TokenPage> findPage(String hypiToken, String instanceDomain, String type, String field, String arcql, int first, String after) {
+    checkNames(type, field);
+    //The filter and cursor come from the caller, they are passed as variables rather than written into the query
+    ObjectNode body = JsonNodeFactory.instance.objectNode();
+    ObjectNode variables = body.putObject("variables");
+    variables.put("arcql", arcql);
+    variables.put("first", first);
+    variables.put("after", after);
+    body.put("query", format("query($arcql: String!, $first: Int, $after: String) {\n" +
+        "  find(type: %s, arcql: $arcql, first: $first, after: $after) {\n" +
+        "    edges { node { ... on %s { %s } } }\n" +
+        "    pageInfo { hasNextPage endCursor }\n" +
+        "  }\n" +
+        "}", type, type, field));
+    return Metrics.time(Metrics.Stage.FIND_TOKEN, graphql.post(hypiToken, instanceDomain, body)).thenApply(node -> {
+      JsonNode find = node.path("data").path("find");
+      if (find.isMissingNode() || find.isNull()) {
+        throw new IllegalStateException(format("Hypi find failed: %s", node.path("errors")));
+      }
+      List<String> tokens = new ArrayList<>(find.path("edges").size());
+      for (JsonNode edge : find.path("edges")) {
+        JsonNode token = edge.path("node").path(field);
+        if (token.isTextual() && !token.asText().isEmpty()) tokens.add(token.asText());
+      }
+      JsonNode pageInfo = find.path("pageInfo");
+      boolean more = pageInfo.path("hasNextPage").asBoolean(false) && pageInfo.path("endCursor").isTextual();
+      return new TokenPage(tokens, more ? pageInfo.path("endCursor").asText() : null);
+    });
+  }
+
+  //The type and field are written into queries, GraphQL has no variables for them
+  private static void checkNames(String type, String field) {
+    if (!graphqlName.matcher(type).matches()) throw new IllegalArgumentException(format("%s is not a valid type name", type));
+    if (!graphqlName.matcher(field).matches()) throw new IllegalArgumentException(format("%s is not a valid field name", field));
+  }
+
+  /**
+   * @return requests sent to {@code endpoint} with the caller's Hypi token
+   */
+  static Graphql graphql(HypiHttpClient http, String endpoint) {
+    return (hypiToken, instanceDomain, body) -> {
+      var response = http.post(
+          endpoint,
+          HttpParams.params()
+              .setStringBody(body.toString())
+              .setHeaders(Map.of(
+                  "Authorization", hypiToken,
+                  "hypi-domain", instanceDomain
+              ))
+      );
+      return Async.toCompletable(response).thenApply(r -> {
+        var entity = r.getEntity();
+        if (entity == null) throw new IllegalStateException("Hypi returned an empty response");
+        try {
+          return JSON.parse(entity.getContent().readAllBytes());
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    };
+  }
+
+  /**
+   * Sends one GraphQL request to a Hypi instance as the caller.
+   */
+  interface Graphql {
+    CompletableFuture<JsonNode> post(String hypiToken, String instanceDomain, ObjectNode body);
+  }
+
+  /**
+   * @param next the cursor of the following page, null if this is the last one
+   */
+  record TokenPage(List<String> tokens, String next) {
+  }
+
+  /**
+   * @param tokens the token of each ID that has one
+   * @param failed why each ID that couldn't be looked up failed
+   */
+  record Fetched(Map<String, String> tokens, Map<String, RuntimeException> failed) {
+  }
+
+  private record Key(String instanceDomain, String type, String field, String id) {
+  }
+
+  private static final class CachedToken {
+    final CompletableFuture<String> token = new CompletableFuture<>();
+    //The token the lookup found once loaded, guarded by the cache's lock
+    String found;
+    //Entries are fresh while the lookup is in flight so concurrent callers wait for it rather than starting another
+    volatile boolean loaded;
+    volatile long expiresAt;
+
+    boolean isFresh(long now) {
+      return !loaded || expiresAt - now > 0;
+    }
+  }
+}
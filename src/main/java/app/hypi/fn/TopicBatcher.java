@@ -0,0 +1,152 @@
+package app.hypi.fn;
+
+import com.google.firebase.messaging.FirebaseMessaging;
+import com.google.firebase.messaging.TopicManagementResponse;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges subscribe and unsubscribe requests to one Firebase app for the same topic into calls of up to
+ * {@link #TOPIC_LIMIT} tokens. Requests are held for up to the window, or until a full call's worth of tokens is waiting.
+ * With no window, each request is sent immediately, split into chunks if it is larger than the limit.
+ */
+class TopicBatcher {
+  //The most tokens FCM accepts in one topic management call
+  static final int TOPIC_LIMIT = 1000;
+  private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "fcm-topic-batcher");
+    t.setDaemon(true);
+    return t;
+  });
+  private final FirebaseMessaging messaging;
+  private final Throttle throttle;
+  private final long windowMillis;
+  private final Map<Group, List<Request>> pending = new HashMap<>();
+
+  TopicBatcher(FirebaseMessaging messaging, Throttle throttle, long windowMillis) {
+    this.messaging = messaging;
+    this.throttle = throttle;
+    this.windowMillis = windowMillis;
+  }
+
+  CompletableFuture<TopicResult> subscribe(String topic, List<String> tokens) {
+    return submit(new Group(topic, true), tokens);
+  }
+
+  CompletableFuture<TopicResult> unsubscribe(String topic, List<String> tokens) {
+    return submit(new Group(topic, false), tokens);
+  }
+
+  /**
+   * Send everything that is waiting now rather than at the end of the window.
+   */
+  void flush() {
+    List<Group> groups;
+    synchronized (pending) {
+      groups = new ArrayList<>(pending.keySet());
+    }
+    groups.forEach(this::flush);
+  }
+
+  private CompletableFuture<TopicResult> submit(Group group, List<String> tokens) {
+    Request request = new Request(tokens);
+    if (tokens.isEmpty()) {
+      request.result.complete(new TopicResult(0, List.of()));
+      return request.result;
+    }
+    //FCM rejects the whole call for one bad token, it must not be merged with other callers' tokens
+    for (String token : tokens) {
+      if (token == null || token.isEmpty()) {
+        request.result.completeExceptionally(new IllegalArgumentException("Tokens must not contain null or empty strings"));
+        return request.result;
+      }
+    }
+    boolean flushNow;
+    synchronized (pending) {
+      List<Request> waiting = pending.computeIfAbsent(group, k -> new ArrayList<>());
+      waiting.add(request);
+      int total = waiting.stream().mapToInt(r -> r.tokens.size()).sum();
+      flushNow = windowMillis <= 0 || total >= TOPIC_LIMIT;
+      if (!flushNow && waiting.size() == 1) timer.schedule(() -> flush(group), windowMillis, TimeUnit.MILLISECONDS);
+    }
+    if (flushNow) flush(group);
+    return request.result;
+  }
+
+  private void flush(Group group) {
+    List<Request> requests;
+    synchronized (pending) {
+      requests = pending.remove(group);
+    }
+    if (requests == null) return;
+    List<String> chunk = new ArrayList<>(TOPIC_LIMIT);
+    List<Slot> slots = new ArrayList<>(TOPIC_LIMIT);
+    for (Request request : requests) {
+      for (int i = 0; i < request.tokens.size(); i++) {
+        chunk.add(request.tokens.get(i));
+        slots.add(new Slot(request, i));
+        if (chunk.size() == TOPIC_LIMIT) {
+          send(group, chunk, slots);
+          chunk = new ArrayList<>(TOPIC_LIMIT);
+          slots = new ArrayList<>(TOPIC_LIMIT);
+        }
+      }
+    }
+    if (!chunk.isEmpty()) send(group, chunk, slots);
+  }
+
+  private void send(Group group, List<String> tokens, List<Slot> slots) {
+    throttle.call(() -> Metrics.time(Metrics.Stage.FCM, Async.toCompletable(group.subscribe
+        ? messaging.subscribeToTopicAsync(tokens, group.topic)
+        : messaging.unsubscribeFromTopicAsync(tokens, group.topic)
+    ))).whenComplete((response, err) -> {
+      if (err != null) {
+        Throwable cause = Async.unwrap(err);
+        for (Slot slot : slots) slot.request.result.completeExceptionally(cause);
+        return;
+      }
+      Map<Integer, String> failed = new HashMap<>();
+      for (TopicManagementResponse.Error error : response.getErrors()) failed.put(error.getIndex(), error.getReason());
+      for (int i = 0; i < slots.size(); i++) {
+        Slot slot = slots.get(i);
+        slot.request.done(slot.index, failed.get(i));
+      }
+    });
+  }
+
+  private record Group(String topic, boolean subscribe) {
+  }
+
+  private record Slot(Request request, int index) {
+  }
+
+  private static final class Request {
+    final List<String> tokens;
+    final CompletableFuture<TopicResult> result = new CompletableFuture<>();
+    private final List<TopicResult.Error> errors = new ArrayList<>();
+    private int completed;
+
+    Request(List<String> tokens) {
+      this.tokens = tokens;
+    }
+
+    /**
+     * Record the outcome of one token, completing the request once every token has one.
+     */
+    synchronized void done(int index, String reason) {
+      if (reason != null) errors.add(new TopicResult.Error(index, reason));
+      if (++completed == tokens.size()) {
+        errors.sort(Comparator.comparingInt(TopicResult.Error::index));
+        result.complete(new TopicResult(tokens.size(), errors));
+      }
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package app.hypi.fn;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of subscribing or unsubscribing one caller's tokens, shaped like
+ * {@link com.google.firebase.messaging.TopicManagementResponse} with error indexes relative to the caller's token list,
+ * even when the tokens were sent to FCM in several chunks or together with other callers' tokens.
+ */
+public class TopicResult {
+  private final int successCount;
+  private final List<Error> errors;
+
+  TopicResult(int tokenCount, List<Error> errors) {
+    this.successCount = tokenCount - errors.size();
+    this.errors = Collections.unmodifiableList(errors);
+  }
+
+  public int getSuccessCount() {
+    return successCount;
+  }
+
+  public int getFailureCount() {
+    return errors.size();
+  }
+
+  public List<Error> getErrors() {
+    return errors;
+  }
+
+  /**
+   * @param index  the position of the failed token in the caller's list
+   * @param reason FCM's reason for the failure
+   */
+  public record Error(int index, String reason) {
+  }
+}
@@ -0,0 +1,72 @@
+package app.hypi.fn;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncLimiterTest {
+  @Test
+  void queuedOperationsCompletingSynchronouslyDontOverflowTheStack() throws Exception {
+    var limiter = new AsyncLimiter(1);
+    var first = new CompletableFuture<Integer>();
+    var blocked = limiter.submit(() -> first);
+    List<CompletableFuture<Integer>> queued = new ArrayList<>();
+    for (int i = 0; i < 50_000; i++) {
+      int value = i;
+      queued.add(limiter.submit(() -> CompletableFuture.completedFuture(value)));
+    }
+    assertFalse(queued.get(0).isDone());
+    first.complete(-1);
+    assertEquals(-1, blocked.get(5, TimeUnit.SECONDS));
+    for (int i = 0; i < queued.size(); i++) assertEquals(i, queued.get(i).get(5, TimeUnit.SECONDS));
+    //Every permit was returned
+    var again = new CompletableFuture<Integer>();
+    var next = limiter.submit(() -> again);
+    again.complete(1);
+    assertEquals(1, next.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void neverRunsMoreThanTheLimit() throws Exception {
+    var limiter = new AsyncLimiter(3);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    List<CompletableFuture<Void>> pending = new ArrayList<>();
+    List<CompletableFuture<Void>> results = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      results.add(limiter.submit(() -> {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        var op = new CompletableFuture<Void>();
+        synchronized (pending) {
+          pending.add(op);
+        }
+        return op.whenComplete((v, err) -> running.decrementAndGet());
+      }));
+    }
+    for (int done = 0; done < 20; done++) {
+      CompletableFuture<Void> op;
+      synchronized (pending) {
+        op = pending.remove(0);
+      }
+      op.complete(null);
+    }
+    CompletableFuture.allOf(results.toArray(CompletableFuture<?>[]::new)).get(5, TimeUnit.SECONDS);
+    assertEquals(3, maxRunning.get());
+  }
+
+  @Test
+  void failedOperationsReleaseTheirPermit() throws Exception {
+    var limiter = new AsyncLimiter(1);
+    var failed = limiter.submit(() -> {
+      throw new IllegalStateException("boom");
+    });
+    assertTrue(failed.isCompletedExceptionally());
+    assertEquals("ok", limiter.submit(() -> CompletableFuture.completedFuture("ok")).get(5, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,116 @@
+package app.hypi.fn;
+
+import com.google.firebase.messaging.MessagingErrorCode;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AudienceSendTest {
+  //Pages and chunks complete only when a test completes them
+  private final Map<String, CompletableFuture<TokenResolver.TokenPage>> pages = new HashMap<>();
+  private final List<String> fetched = new ArrayList<>();
+  private final List<List<String>> chunks = new ArrayList<>();
+  private final List<CompletableFuture<List<MulticastResult.TokenResponse>>> sends = new ArrayList<>();
+
+  @Test
+  void pausesReadingAtMaxInFlightAndResumesAsChunksComplete() throws Exception {
+    var result = start(2, 2);
+    page(null, List.of("a", "b", "c", "d"), "p2");
+    assertEquals(List.of(List.of("a", "b"), List.of("c", "d")), chunks);
+    assertEquals(1, fetched.size(), "The next page waits for a chunk to complete");
+
+    ok(0);
+    assertEquals(List.of("first", "p2"), fetched);
+    page("p2", List.of("e", "f", "g"), "p3");
+    //Two chunks in flight again, g waits in the buffer for the next page
+    assertEquals(3, chunks.size());
+    assertEquals(2, fetched.size());
+
+    ok(1);
+    page("p3", List.of(), null);
+    assertEquals(List.of("g"), chunks.get(3));
+    assertFalse(result.isDone());
+
+    sends.get(2).complete(List.of(success("e"), new MulticastResult.TokenResponse(null, "f", null, MessagingErrorCode.UNREGISTERED, "gone")));
+    ok(3);
+    var done = result.getNow(null);
+    assertEquals(7, done.getTokenCount());
+    assertEquals(6, done.getSuccessCount());
+    assertEquals(1, done.getDeadCount());
+    assertEquals(3, done.getPageCount());
+  }
+
+  @Test
+  void aFailedPageFailsTheResult() {
+    var result = start(2, 2);
+    pages.get("first").completeExceptionally(new IllegalStateException("Hypi is down"));
+    var err = assertThrows(ExecutionException.class, result::get);
+    assertTrue(err.getCause().getMessage().contains("Hypi is down"));
+    assertTrue(chunks.isEmpty());
+  }
+
+  @Test
+  void aFailedPageWaitsForChunksAlreadySent() {
+    var result = start(2, 2);
+    page(null, List.of("a", "b"), "p2");
+    pages.get("p2").completeExceptionally(new IllegalStateException("Hypi is down"));
+    assertFalse(result.isDone(), "The chunk already sent is still counted");
+    ok(0);
+    var err = assertThrows(ExecutionException.class, result::get);
+    assertTrue(err.getCause().getMessage().contains("sending to 2 tokens, 2 successfully"));
+  }
+
+  @Test
+  void aChunkFailingWhileReadingIsPausedCompletesTheResult() {
+    var result = start(1, 1);
+    page(null, List.of("a"), "p2");
+    assertEquals(1, fetched.size());
+    sends.get(0).completeExceptionally(new IllegalStateException("Connection reset"));
+    var err = assertThrows(ExecutionException.class, result::get);
+    assertTrue(err.getCause().getMessage().contains("Connection reset"));
+    assertEquals(List.of("first"), fetched, "The rest of the audience isn't read");
+  }
+
+  @Test
+  void anEmptyAudienceCompletesAtOnce() {
+    var result = start(2, 2);
+    page(null, List.of(), null);
+    var done = result.getNow(null);
+    assertNotNull(done);
+    assertEquals(0, done.getTokenCount());
+    assertEquals(1, done.getPageCount());
+    assertTrue(chunks.isEmpty());
+  }
+
+  private CompletableFuture<AudienceResult> start(int chunkSize, int maxInFlight) {
+    return new AudienceSend(cursor -> {
+      String key = cursor == null ? "first" : cursor;
+      fetched.add(key);
+      return pages.computeIfAbsent(key, k -> new CompletableFuture<>());
+    }, chunk -> {
+      chunks.add(chunk);
+      var sent = new CompletableFuture<List<MulticastResult.TokenResponse>>();
+      sends.add(sent);
+      return sent;
+    }, chunkSize, maxInFlight).start();
+  }
+
+  private void page(String cursor, List<String> tokens, String next) {
+    pages.get(cursor == null ? "first" : cursor).complete(new TokenResolver.TokenPage(tokens, next));
+  }
+
+  private void ok(int chunk) {
+    sends.get(chunk).complete(chunks.get(chunk).stream().map(AudienceSendTest::success).toList());
+  }
+
+  private static MulticastResult.TokenResponse success(String token) {
+    return new MulticastResult.TokenResponse(null, token, "m-" + token, null, null);
+  }
+}
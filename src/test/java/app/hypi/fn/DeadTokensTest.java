@@ -0,0 +1,47 @@
+package app.hypi.fn;
+
+import com.google.firebase.messaging.MessagingErrorCode;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeadTokensTest {
+  @Test
+  void remembersTokensUntilTheyExpire() {
+    var dead = new DeadTokens(64, Duration.ofHours(1));
+    dead.add("token-1");
+    assertTrue(dead.contains("token-1"));
+    assertFalse(dead.contains("token-2"));
+    assertEquals(1, dead.size());
+    var expired = new DeadTokens(64, Duration.ZERO);
+    expired.add("token-1");
+    assertFalse(expired.contains("token-1"));
+  }
+
+  @Test
+  void addingATokenAgainDoesntTakeAnotherSlot() {
+    var dead = new DeadTokens(64, Duration.ofHours(1));
+    for (int i = 0; i < 10; i++) dead.add("token-1");
+    assertEquals(1, dead.size());
+  }
+
+  @Test
+  void neverGrowsPastItsCapacity() {
+    var dead = new DeadTokens(64, Duration.ofHours(1));
+    for (int i = 0; i < 10_000; i++) dead.add("token-" + i);
+    assertTrue(dead.size() <= 128, "The table has a fixed number of slots");
+    //The latest tokens replace older ones when their slots are taken
+    assertTrue(dead.contains("token-9999"));
+  }
+
+  @Test
+  void onlyTokenErrorsMeanTheTokenIsDead() {
+    assertTrue(DeadTokens.isDeadTokenError(MessagingErrorCode.UNREGISTERED, null));
+    assertTrue(DeadTokens.isDeadTokenError(MessagingErrorCode.INVALID_ARGUMENT, "The registration token is not a valid FCM registration token"));
+    assertFalse(DeadTokens.isDeadTokenError(MessagingErrorCode.INVALID_ARGUMENT, "Invalid JSON payload received"));
+    assertFalse(DeadTokens.isDeadTokenError(MessagingErrorCode.QUOTA_EXCEEDED, null));
+    assertFalse(DeadTokens.isDeadTokenError(null, "registration token"));
+  }
+}
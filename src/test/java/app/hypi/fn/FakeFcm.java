@@ -0,0 +1,106 @@
+package app.hypi.fn;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseOptions;
+import com.google.firebase.messaging.FirebaseMessaging;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Firebase app whose FCM calls are answered in-process by a handler instead of going to Google.
+ */
+final class FakeFcm implements AutoCloseable {
+  static final ObjectMapper mapper = new ObjectMapper();
+  private static final AtomicInteger apps = new AtomicInteger();
+  final List<Call> calls = Collections.synchronizedList(new ArrayList<>());
+  final FirebaseApp app;
+  final FirebaseMessaging messaging;
+
+  FakeFcm(Handler handler) {
+    var transport = new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(String method, String url) {
+        return new MockLowLevelHttpRequest(url) {
+          @Override
+          public MockLowLevelHttpResponse execute() throws IOException {
+            String content = getContentAsString();
+            Call call = new Call(url, content.isEmpty() ? mapper.createObjectNode() : mapper.readTree(content));
+            calls.add(call);
+            Reply reply = handler.handle(call);
+            return new MockLowLevelHttpResponse()
+                .setStatusCode(reply.status())
+                .setContentType("application/json; charset=UTF-8")
+                .setContent(reply.body());
+          }
+        };
+      }
+    };
+    app = FirebaseApp.initializeApp(FirebaseOptions.builder()
+        .setCredentials(GoogleCredentials.create(new AccessToken("test", new Date(Long.MAX_VALUE))))
+        .setProjectId("test")
+        .setHttpTransport(transport)
+        .build(), "fake-fcm-" + apps.incrementAndGet());
+    messaging = FirebaseMessaging.getInstance(app);
+  }
+
+  /**
+   * Answers sends with a message name and topic calls with success for every token.
+   */
+  static Reply accept(Call call) {
+    if (call.url().contains("iid.googleapis.com")) {
+      var results = mapper.createArrayNode();
+      call.body().path("registration_tokens").forEach(t -> results.addObject());
+      return new Reply(200, mapper.createObjectNode().set("results", results).toString());
+    }
+    return new Reply(200, "{\"name\": \"projects/test/messages/" + Math.abs(call.body().hashCode()) + "\"}");
+  }
+
+  /**
+   * @param errorCode the FCM error code, e.g. UNREGISTERED, or null for an error without one
+   */
+  static Reply error(int status, String errorCode) {
+    String details = errorCode == null ? "" : ", \"details\": [{\"@type\": \"type.googleapis.com/google.firebase.fcm.v1.FcmError\", \"errorCode\": \"" + errorCode + "\"}]";
+    String platformStatus = switch (status) {
+      case 400 -> "INVALID_ARGUMENT";
+      case 404 -> "NOT_FOUND";
+      case 429 -> "RESOURCE_EXHAUSTED";
+      case 503 -> "UNAVAILABLE";
+      default -> "INTERNAL";
+    };
+    return new Reply(status, "{\"error\": {\"code\": " + status + ", \"message\": \"test error\", \"status\": \"" + platformStatus + "\"" + details + "}}");
+  }
+
+  List<Call> calls(String urlPart) {
+    synchronized (calls) {
+      return calls.stream().filter(c -> c.url().contains(urlPart)).toList();
+    }
+  }
+
+  @Override
+  public void close() {
+    app.delete();
+  }
+
+  record Call(String url, JsonNode body) {
+  }
+
+  record Reply(int status, String body) {
+  }
+
+  interface Handler {
+    Reply handle(Call call);
+  }
+}
@@ -0,0 +1,176 @@
+package app.hypi.fn;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GZipEncoding;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.firebase.ErrorCode;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseOptions;
+import com.google.firebase.messaging.FirebaseMessaging;
+import com.google.firebase.messaging.FirebaseMessagingException;
+import com.google.firebase.messaging.Message;
+import com.google.firebase.messaging.MessagingErrorCode;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Date;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class Http2TransportTest {
+  private HttpServer server;
+  private String base;
+  private volatile Headers requestHeaders;
+  private volatile String requestBody;
+  private volatile String requestLine;
+
+  @BeforeEach
+  void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/echo", exchange -> {
+      record(exchange);
+      exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+      exchange.getResponseHeaders().add("X-Reply", "one");
+      exchange.getResponseHeaders().add("X-Reply", "two");
+      reply(exchange, 201, "{\"echo\": true}".getBytes(UTF_8));
+    });
+    server.createContext("/gzip", exchange -> {
+      record(exchange);
+      ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+      try (var out = new GZIPOutputStream(zipped)) {
+        out.write("compressed reply".getBytes(UTF_8));
+      }
+      exchange.getResponseHeaders().add("Content-Type", "text/plain");
+      exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+      reply(exchange, 200, zipped.toByteArray());
+    });
+    server.createContext("/v1/projects/test/messages:send", exchange -> {
+      record(exchange);
+      exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+      reply(exchange, 404, FakeFcm.error(404, "UNREGISTERED").body().getBytes(UTF_8));
+    });
+    server.start();
+    base = "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  @AfterEach
+  void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  void sendsTheRequestAndReadsTheResponse() throws Exception {
+    HttpRequest request = new Http2Transport(Duration.ofSeconds(5)).createRequestFactory()
+        .buildPostRequest(new GenericUrl(base + "/echo"), new ByteArrayContent("application/json", "{\"hello\": 1}".getBytes(UTF_8)));
+    request.getHeaders().set("X-Custom", "custom");
+    HttpResponse response = request.execute();
+    try {
+      assertEquals(201, response.getStatusCode());
+      assertEquals("application/json; charset=UTF-8", response.getContentType());
+      assertEquals("{\"echo\": true}", response.parseAsString());
+      assertEquals(2, response.getHeaders().getHeaderStringValues("x-reply").size());
+    } finally {
+      response.disconnect();
+    }
+    assertEquals("POST /echo", requestLine);
+    assertEquals("{\"hello\": 1}", requestBody);
+    assertEquals("application/json", requestHeaders.getFirst("Content-Type"));
+    assertEquals("custom", requestHeaders.getFirst("X-Custom"));
+  }
+
+  @Test
+  void compressesRequestsAndDecompressesResponses() throws Exception {
+    HttpRequest request = new Http2Transport(Duration.ofSeconds(5)).createRequestFactory()
+        .buildPostRequest(new GenericUrl(base + "/gzip"), new ByteArrayContent("text/plain", "compressed request".getBytes(UTF_8)));
+    request.setEncoding(new GZipEncoding());
+    HttpResponse response = request.execute();
+    try {
+      assertEquals("gzip", response.getContentEncoding());
+      assertEquals("compressed reply", response.parseAsString());
+    } finally {
+      response.disconnect();
+    }
+    assertEquals("gzip", requestHeaders.getFirst("Content-Encoding"));
+    assertEquals("compressed request", requestBody);
+  }
+
+  @Test
+  void dropsHeadersTheClientSetsItself() throws Exception {
+    HttpRequest request = new Http2Transport(Duration.ofSeconds(5)).createRequestFactory().buildGetRequest(new GenericUrl(base + "/echo"));
+    request.getHeaders()
+        .setContentLength(100L)
+        .set("Connection", "close")
+        .set("Expect", "100-continue")
+        .set("Host", "elsewhere.example")
+        .set("Upgrade", "websocket")
+        .set("X-Custom", "kept");
+    HttpResponse response = request.execute();
+    response.disconnect();
+    assertEquals(201, response.getStatusCode());
+    assertEquals("GET /echo", requestLine);
+    assertEquals("kept", requestHeaders.getFirst("X-Custom"));
+    assertNotEquals("elsewhere.example", requestHeaders.getFirst("Host"));
+    assertNotEquals("websocket", requestHeaders.getFirst("Upgrade"));
+  }
+
+  @Test
+  void anFcmErrorReachesFirebaseAsAMessagingException() throws Exception {
+    //The real transport, pointed at the local server instead of Google
+    var transport = new Http2Transport(Duration.ofSeconds(5)) {
+      @Override
+      protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return super.buildRequest(method, url.replace("https://fcm.googleapis.com", base));
+      }
+    };
+    FirebaseApp app = FirebaseApp.initializeApp(FirebaseOptions.builder()
+        .setCredentials(GoogleCredentials.create(new AccessToken("test", new Date(Long.MAX_VALUE))))
+        .setProjectId("test")
+        .setHttpTransport(transport)
+        .build(), "http2-transport-test");
+    try {
+      var err = assertThrows(FirebaseMessagingException.class, () ->
+          FirebaseMessaging.getInstance(app).send(Message.builder().setToken("gone").putData("k", "v").build()));
+      assertEquals(MessagingErrorCode.UNREGISTERED, err.getMessagingErrorCode());
+      assertEquals(ErrorCode.NOT_FOUND, err.getErrorCode());
+      assertEquals(404, err.getHttpResponse().getStatusCode());
+      assertEquals("POST /v1/projects/test/messages:send", requestLine);
+      assertEquals("Bearer test", requestHeaders.getFirst("Authorization"));
+      assertTrue(requestBody.contains("\"token\":\"gone\""), requestBody);
+    } finally {
+      app.delete();
+    }
+  }
+
+  private void record(HttpExchange exchange) throws IOException {
+    requestLine = exchange.getRequestMethod() + " " + exchange.getRequestURI();
+    requestHeaders = exchange.getRequestHeaders();
+    InputStream in = exchange.getRequestBody();
+    if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) in = new GZIPInputStream(in);
+    requestBody = new String(in.readAllBytes(), UTF_8);
+  }
+
+  private static void reply(HttpExchange exchange, int status, byte[] body) throws IOException {
+    exchange.sendResponseHeaders(status, body.length);
+    try (var out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
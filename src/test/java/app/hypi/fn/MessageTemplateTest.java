@@ -0,0 +1,95 @@
+package app.hypi.fn;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageTemplateTest {
+  @Test
+  void registeredTemplatesArentEvictedByCachedMessages() {
+    var registry = new MessageTemplate.Registry(10);
+    var registered = registry.get("welcome", message("Hello ${name}"));
+    //Far more than FCM_TEMPLATE_CACHE_SIZE messages cached by content
+    for (int i = 0; i < 5_000; i++) MessageTemplate.cached(message("Message " + i + " ${name}"));
+    assertSame(registered, registry.get("welcome", null));
+  }
+
+  @Test
+  void registeringAgainWithADifferentMessageReplacesIt() {
+    var registry = new MessageTemplate.Registry(10);
+    var first = registry.get("welcome", message("Hello ${name}"));
+    assertSame(first, registry.get("welcome", message("Hello ${name}")));
+    var second = registry.get("welcome", message("Hi ${name}"));
+    assertNotSame(first, second);
+    assertSame(second, registry.get("welcome", null));
+  }
+
+  @Test
+  void registrationsAreLimited() {
+    var registry = new MessageTemplate.Registry(2);
+    registry.get("a", message("a"));
+    registry.get("b", message("b"));
+    assertThrows(IllegalArgumentException.class, () -> registry.get("c", message("c")));
+    //Replacing a registered template is still allowed
+    registry.get("a", message("a2"));
+    assertThrows(IllegalArgumentException.class, () -> registry.get("unknown", null));
+  }
+
+  @Test
+  void fillsInPlaceholders() {
+    var template = new MessageTemplate.Registry(1).get("welcome", message("Hello ${name}"));
+    assertEquals(Map.of("body", "Hello Ada"), template.toSource(Map.of("name", "Ada")).get("data"));
+  }
+
+  @Test
+  void rendersAMessageWithTheVariablesOfEachSend() throws Exception {
+    Map<String, Object> pushMessage = Map.of(
+        "notification", Map.of("title", "Welcome", "body", "Hello ${name}"),
+        "android", Map.of("collapseKey", "welcome"),
+        "data", Map.of("user", "${name}", "kind", "greeting"));
+    try (var fcm = new FakeFcm(FakeFcm::accept)) {
+      var template = MessageTemplate.cached(new HashMap<>(pushMessage));
+      fcm.messaging.send(template.toMessage(Map.of("name", "Ada")).setToken("t1").build());
+      //An identical message sent with other variables reuses the compiled template
+      assertSame(template, MessageTemplate.cached(new HashMap<>(pushMessage)));
+      fcm.messaging.send(template.toMessage(Map.of("name", "Grace")).setToken("t2").build());
+
+      var sent = fcm.calls("messages:send").stream().map(c -> c.body().path("message")).toList();
+      assertEquals("t1", sent.get(0).path("token").asText());
+      assertEquals("Welcome", sent.get(0).path("notification").path("title").asText());
+      assertEquals("Hello Ada", sent.get(0).path("notification").path("body").asText());
+      assertEquals("Ada", sent.get(0).path("data").path("user").asText());
+      assertEquals("greeting", sent.get(0).path("data").path("kind").asText());
+      assertEquals("welcome", sent.get(0).path("android").path("collapse_key").asText());
+      assertEquals("Hello Grace", sent.get(1).path("notification").path("body").asText());
+      assertEquals("Grace", sent.get(1).path("data").path("user").asText());
+    }
+  }
+
+  @Test
+  void registeredTemplatesAreReusedAcrossRenders() {
+    var registry = new MessageTemplate.Registry(1);
+    var template = registry.get("welcome", message("Hello ${name}"));
+    assertEquals(Map.of("body", "Hello Ada"), template.toSource(Map.of("name", "Ada")).get("data"));
+    assertSame(template, registry.get("welcome", null));
+    assertEquals(Map.of("body", "Hello Grace"), registry.get("welcome", null).toSource(Map.of("name", "Grace")).get("data"));
+  }
+
+  @Test
+  void changingTheCallersMapDoesntChangeTheCachedTemplate() {
+    Map<String, Object> data = new HashMap<>(Map.of("body", "Hello ${name}"));
+    Map<String, Object> pushMessage = new HashMap<>(Map.of("data", data));
+    var template = MessageTemplate.cached(pushMessage);
+    data.put("body", "Changed ${name}");
+    assertEquals(Map.of("body", "Hello Ada"), template.toSource(Map.of("name", "Ada")).get("data"));
+    assertSame(template, MessageTemplate.cached(message("Hello ${name}")));
+    assertNotSame(template, MessageTemplate.cached(pushMessage));
+  }
+
+  private static Map<String, Object> message(String body) {
+    return Map.of("data", Map.of("body", body));
+  }
+}
@@ -0,0 +1,29 @@
+package app.hypi.fn;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsTest {
+  @Test
+  void onlyTheOperatorsKeyCanReadMetrics() {
+    assertThrows(IllegalStateException.class, () -> Metrics.authorize(null, "anything"));
+    assertThrows(IllegalArgumentException.class, () -> Metrics.authorize("secret", null));
+    assertThrows(IllegalArgumentException.class, () -> Metrics.authorize("secret", "secreT"));
+    assertDoesNotThrow(() -> Metrics.authorize("secret", "secret"));
+  }
+
+  @Test
+  void percentilesAreWithinAFactorOfTwo() {
+    var histogram = new Metrics.Histogram();
+    for (int i = 1; i <= 100; i++) histogram.record(TimeUnit.MICROSECONDS.toNanos(i * 10L));
+    var snapshot = histogram.snapshot();
+    assertEquals(100L, snapshot.get("count"));
+    long p50 = (long) snapshot.get("p50Micros");
+    assertTrue(p50 >= 500 && p50 <= 1000, "p50 was " + p50);
+    assertEquals(1000L, snapshot.get("maxMicros"));
+    assertTrue((long) snapshot.get("p99Micros") <= 1000, "Percentiles never exceed the max");
+  }
+}
@@ -0,0 +1,81 @@
+package app.hypi.fn;
+
+import com.google.firebase.messaging.BatchResponse;
+import com.google.firebase.messaging.MessagingErrorCode;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MulticastTest {
+  private final Main main = new Main();
+
+  @Test
+  void splitsTokensIntoChunksOfTheMulticastLimit() throws Exception {
+    List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+    var merged = Main.inChunks(new AsyncLimiter(2), tokens(1200), chunk -> {
+      sizes.add(chunk.size());
+      return CompletableFuture.completedFuture(chunk);
+    }).get(5, TimeUnit.SECONDS);
+    assertEquals(List.of(500, 500, 200), sizes);
+    assertEquals(tokens(1200), merged);
+  }
+
+  @Test
+  void mergesChunksBackInTokenOrder() throws Exception {
+    try (var fcm = new FakeFcm(call -> switch (call.body().path("message").path("token").asText()) {
+      case "t700" -> FakeFcm.error(404, "UNREGISTERED");
+      case "t1100" -> FakeFcm.error(400, "INVALID_ARGUMENT");
+      default -> FakeFcm.accept(call);
+    })) {
+      var result = main.sendToEachDeviceAsync(fcm.messaging, message(), tokens(1200)).get(30, TimeUnit.SECONDS);
+      assertEquals(1200, result.getResponses().size());
+      for (int i = 0; i < 1200; i++) assertEquals("t" + i, result.getResponses().get(i).token());
+      assertEquals(1198, result.getSuccessCount());
+      assertEquals(List.of("t700", "t1100"), result.getFailedTokens());
+      assertEquals(MessagingErrorCode.UNREGISTERED, result.getResponses().get(700).errorCode());
+      assertEquals(List.of("t700"), result.getDeadTokens());
+    }
+  }
+
+  @Test
+  void aFailedChunkIsReportedAgainstItsOwnTokens() throws Exception {
+    //Every message of the second chunk fails, the other chunks still succeed
+    try (var fcm = new FakeFcm(call -> {
+      int i = Integer.parseInt(call.body().path("message").path("token").asText().substring(1));
+      return i >= 500 && i < 1000 ? FakeFcm.error(400, "INVALID_ARGUMENT") : FakeFcm.accept(call);
+    })) {
+      var result = main.sendToEachDeviceAsync(fcm.messaging, message(), tokens(1200)).get(30, TimeUnit.SECONDS);
+      assertEquals(700, result.getSuccessCount());
+      assertEquals(tokens(1200).subList(500, 1000), result.getFailedTokens());
+      assertEquals(MessagingErrorCode.INVALID_ARGUMENT, result.getResponses().get(999).errorCode());
+      assertTrue(result.getResponses().get(1000).isSuccessful());
+    }
+  }
+
+  @Test
+  void theBatchResponseFormKeepsFcmsResponses() throws Exception {
+    try (var fcm = new FakeFcm(call -> call.body().path("message").path("token").asText().equals("t600")
+        ? FakeFcm.error(404, "UNREGISTERED") : FakeFcm.accept(call))) {
+      BatchResponse response = main.sendToMultipleDeviceAsync(fcm.messaging, message(), tokens(700)).get(30, TimeUnit.SECONDS);
+      assertEquals(700, response.getResponses().size());
+      assertEquals(699, response.getSuccessCount());
+      assertEquals(MessagingErrorCode.UNREGISTERED, response.getResponses().get(600).getException().getMessagingErrorCode());
+    }
+  }
+
+  private static List<String> tokens(int count) {
+    return IntStream.range(0, count).mapToObj(i -> "t" + i).toList();
+  }
+
+  private static Map<String, Object> message() {
+    return Map.of("data", Map.of("k", "v"));
+  }
+}
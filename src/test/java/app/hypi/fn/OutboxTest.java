@@ -0,0 +1,199 @@
+package app.hypi.fn;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboxTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  void sendsWhatIsAppended() throws Exception {
+    try (var fcm = new FakeFcm(FakeFcm::accept)) {
+      var outbox = open(fcm, 1 << 20);
+      outbox.append(record("a")).get(5, TimeUnit.SECONDS);
+      outbox.append(Outbox.record("topic", "news", message())).get(5, TimeUnit.SECONDS);
+      await(() -> fcm.calls("messages:send").size() == 2);
+      //Both records can be in one batch, whose messages are sent concurrently
+      assertEquals(Set.of("a", "news"), fcm.calls("messages:send").stream()
+          .map(c -> c.body().path("message").path(c.body().path("message").has("token") ? "token" : "topic").asText())
+          .collect(Collectors.toSet()));
+      outbox.close();
+    }
+  }
+
+  @Test
+  void rejectsRecordsWithoutATarget() {
+    assertThrows(IllegalArgumentException.class, () -> Outbox.record("token", null, message()));
+    assertThrows(IllegalArgumentException.class, () -> Outbox.record("topic", "", message()));
+    assertThrows(IllegalArgumentException.class, () -> Outbox.toMessage(Map.of("message", message())));
+  }
+
+  @Test
+  void concurrentAppendsAreAllWritten() throws Exception {
+    try (var fcm = new FakeFcm(FakeFcm::accept)) {
+      var outbox = open(fcm, 1 << 20);
+      List<CompletableFuture<Void>> appends = new ArrayList<>();
+      for (int i = 0; i < 200; i++) appends.add(outbox.append(record("t" + i)));
+      CompletableFuture.allOf(appends.toArray(CompletableFuture<?>[]::new)).get(5, TimeUnit.SECONDS);
+      await(() -> fcm.calls("messages:send").size() == 200);
+      outbox.close();
+    }
+  }
+
+  @Test
+  void replaysFromTheCheckpointAfterARestart() throws Exception {
+    try (var down = new FakeFcm(call -> FakeFcm.error(429, "QUOTA_EXCEEDED"))) {
+      var outbox = open(down, 1 << 20);
+      outbox.append(record("a")).get(5, TimeUnit.SECONDS);
+      outbox.append(record("b")).get(5, TimeUnit.SECONDS);
+      await(() -> down.calls("messages:send").size() >= 2);
+      outbox.close();
+    }
+    try (var up = new FakeFcm(FakeFcm::accept)) {
+      var outbox = open(up, 1 << 20);
+      await(() -> up.calls("messages:send").size() == 2);
+      await(() -> Files.exists(dir.resolve("checkpoint")));
+      outbox.close();
+    }
+    //Everything was sent, a third process has nothing to send
+    try (var again = new FakeFcm(FakeFcm::accept)) {
+      var outbox = open(again, 1 << 20);
+      outbox.append(record("c")).get(5, TimeUnit.SECONDS);
+      await(() -> again.calls("messages:send").size() == 1);
+      Thread.sleep(50);
+      assertEquals(1, again.calls("messages:send").size());
+      outbox.close();
+    }
+  }
+
+  @Test
+  void truncatesARecordTornByACrash() throws Exception {
+    try (var down = new FakeFcm(call -> FakeFcm.error(429, "QUOTA_EXCEEDED"))) {
+      var outbox = open(down, 1 << 20);
+      outbox.append(record("a")).get(5, TimeUnit.SECONDS);
+      outbox.close();
+    }
+    Path segment = segments().get(0);
+    long valid = Files.size(segment);
+    //A length and checksum written without the body that should follow
+    Files.write(segment, new byte[]{0, 0, 0, 100, 1, 2, 3, 4, '{'}, StandardOpenOption.APPEND);
+    try (var up = new FakeFcm(FakeFcm::accept)) {
+      var outbox = open(up, 1 << 20);
+      assertEquals(valid, Files.size(segment));
+      outbox.append(record("b")).get(5, TimeUnit.SECONDS);
+      await(() -> up.calls("messages:send").size() == 2);
+      outbox.close();
+    }
+  }
+
+  @Test
+  void dropsARecordThatFailsItsChecksum() throws Exception {
+    try (var down = new FakeFcm(call -> FakeFcm.error(429, "QUOTA_EXCEEDED"))) {
+      var outbox = open(down, 1 << 20);
+      outbox.append(record("a")).get(5, TimeUnit.SECONDS);
+      outbox.close();
+    }
+    Path segment = segments().get(0);
+    byte[] bytes = Files.readAllBytes(segment);
+    //Flip a byte of the token inside the body
+    bytes[bytes.length - 20] ^= 1;
+    Files.write(segment, bytes);
+    try (var up = new FakeFcm(FakeFcm::accept)) {
+      var outbox = open(up, 1 << 20);
+      outbox.append(record("b")).get(5, TimeUnit.SECONDS);
+      await(() -> up.calls("messages:send").size() == 1);
+      assertEquals("b", up.calls("messages:send").get(0).body().path("message").path("token").asText());
+      outbox.close();
+    }
+  }
+
+  @Test
+  void deletesSegmentsOnceTheyAreSent() throws Exception {
+    try (var fcm = new FakeFcm(FakeFcm::accept)) {
+      //Every record fills a segment
+      var outbox = open(fcm, 1);
+      for (int i = 0; i < 5; i++) outbox.append(record("t" + i)).get(5, TimeUnit.SECONDS);
+      await(() -> fcm.calls("messages:send").size() == 5);
+      await(() -> segments().size() == 1);
+      outbox.close();
+    }
+  }
+
+  @Test
+  void movesMessagesFcmRejectsToTheDeadLetterFile() throws Exception {
+    List<String> dead = new CopyOnWriteArrayList<>();
+    try (var fcm = new FakeFcm(call -> switch (call.body().path("message").path("token").asText()) {
+      case "gone" -> FakeFcm.error(404, "UNREGISTERED");
+      case "bad" -> FakeFcm.error(400, "INVALID_ARGUMENT");
+      default -> FakeFcm.accept(call);
+    })) {
+      var outbox = new Outbox(dir, fcm.messaging, throttle(), dead::add, 1 << 20, true, 500, Duration.ofMillis(5), Duration.ofMillis(20));
+      outbox.append(record("gone")).get(5, TimeUnit.SECONDS);
+      outbox.append(record("bad")).get(5, TimeUnit.SECONDS);
+      outbox.append(record("ok")).get(5, TimeUnit.SECONDS);
+      Path deadLetterFile = dir.resolve("dead-letter.log");
+      await(() -> dead.size() == 1 && Files.exists(deadLetterFile) && Files.readString(deadLetterFile, StandardCharsets.ISO_8859_1).contains("\"token\":\"bad\""));
+      assertEquals(List.of("gone"), dead);
+      String deadLetters = Files.readString(deadLetterFile, StandardCharsets.ISO_8859_1);
+      assertTrue(deadLetters.contains("INVALID_ARGUMENT"));
+      assertFalse(deadLetters.contains("\"token\":\"gone\""), "Dead tokens are reported, not kept");
+      //Nothing is sent again
+      Thread.sleep(50);
+      assertEquals(3, fcm.calls("messages:send").size());
+      outbox.close();
+    }
+  }
+
+  private Outbox open(FakeFcm fcm, long segmentBytes) {
+    return new Outbox(dir, fcm.messaging, throttle(), token -> {
+    }, segmentBytes, true, 500, Duration.ofMillis(5), Duration.ofMillis(20));
+  }
+
+  private static Throttle throttle() {
+    return new Throttle("test", 0, 1, 1000, 1, Duration.ofMillis(1), Duration.ofMillis(5));
+  }
+
+  private List<Path> segments() throws Exception {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.filter(p -> p.getFileName().toString().startsWith("segment-")).sorted().toList();
+    }
+  }
+
+  private static Map<String, Object> record(String token) {
+    return Outbox.record("token", token, message());
+  }
+
+  private static Map<String, Object> message() {
+    return Map.of("data", Map.of("k", "v"));
+  }
+
+  private static void await(Check condition) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.met()) {
+      if (System.nanoTime() > deadline) fail("Timed out waiting for the outbox");
+      Thread.sleep(5);
+    }
+  }
+
+  private interface Check {
+    boolean met() throws Exception;
+  }
+}
@@ -0,0 +1,135 @@
+package app.hypi.fn;
+
+import com.google.firebase.messaging.BatchResponse;
+import com.google.firebase.messaging.Message;
+import com.google.firebase.messaging.MessagingErrorCode;
+import com.google.firebase.messaging.SendResponse;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThrottleTest {
+  @Test
+  void queuedCallsCompletingSynchronouslyDontOverflowTheStack() throws Exception {
+    var throttle = new Throttle("test", 0, 1, 1, 1, Duration.ofMillis(1), Duration.ofMillis(1));
+    var first = new CompletableFuture<Integer>();
+    var blocked = throttle.call(() -> first);
+    List<CompletableFuture<Integer>> queued = new ArrayList<>();
+    for (int i = 0; i < 50_000; i++) {
+      int value = i;
+      queued.add(throttle.call(() -> CompletableFuture.completedFuture(value)));
+    }
+    assertEquals(50_000, throttle.stats().get("waiting"));
+    first.complete(-1);
+    assertEquals(-1, blocked.get(5, TimeUnit.SECONDS));
+    for (int i = 0; i < queued.size(); i++) assertEquals(i, queued.get(i).get(5, TimeUnit.SECONDS));
+    assertEquals(0, throttle.stats().get("inFlight"));
+    assertEquals(0, throttle.stats().get("waiting"));
+  }
+
+  @Test
+  void concurrencyIsCountedInMessages() throws Exception {
+    var throttle = new Throttle("test", 0, 1, 10, 1, Duration.ofMillis(1), Duration.ofMillis(1));
+    var batch = new CompletableFuture<BatchResponse>();
+    var sent = throttle.sendEach(List.of(1, 2, 3, 4, 5, 6, 7, 8), items -> batch);
+    assertEquals(8, throttle.stats().get("inFlight"));
+    //Two more fit, a third has to wait for the batch
+    var single = new CompletableFuture<String>();
+    throttle.call(() -> single);
+    throttle.call(() -> single);
+    AtomicInteger started = new AtomicInteger();
+    var third = throttle.call(() -> {
+      started.incrementAndGet();
+      return CompletableFuture.completedFuture("third");
+    });
+    assertEquals(0, started.get());
+    batch.complete(batch(0));
+    assertEquals("third", third.get(5, TimeUnit.SECONDS));
+    assertEquals(0, sent.get(5, TimeUnit.SECONDS).size());
+  }
+
+  @Test
+  void aCallLargerThanTheLimitStartsAlone() throws Exception {
+    var throttle = new Throttle("test", 0, 1, 10, 1, Duration.ofMillis(1), Duration.ofMillis(1));
+    var single = new CompletableFuture<String>();
+    throttle.call(() -> single);
+    AtomicInteger started = new AtomicInteger();
+    var large = throttle.sendEach(Collections.nCopies(500, "t"), items -> {
+      started.incrementAndGet();
+      return CompletableFuture.completedFuture(batch(0));
+    });
+    assertEquals(0, started.get());
+    single.complete("done");
+    large.get(5, TimeUnit.SECONDS);
+    assertEquals(1, started.get());
+    assertEquals(0, throttle.stats().get("inFlight"));
+  }
+
+  @Test
+  void rateIsChargedPerMessage() throws Exception {
+    //10 messages a second with a burst of 10, a batch of 10 uses up the bucket
+    var throttle = new Throttle("test", 10, 10, 1000, 1, Duration.ofMillis(1), Duration.ofMillis(1));
+    throttle.sendEach(Collections.nCopies(10, "t"), items -> CompletableFuture.completedFuture(batch(0))).get(5, TimeUnit.SECONDS);
+    long started = System.nanoTime();
+    throttle.call(() -> CompletableFuture.completedFuture("next")).get(5, TimeUnit.SECONDS);
+    assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(50), "The next message waits for the bucket to refill");
+  }
+
+  @Test
+  void retriesOnlyTheMessagesThatFailedWithARetryableError() throws Exception {
+    AtomicInteger attempt = new AtomicInteger();
+    try (var fcm = new FakeFcm(call -> {
+      String token = call.body().path("message").path("token").asText();
+      //The first attempt for token b is rejected as over quota, which the Firebase client doesn't retry itself
+      if (token.equals("b") && attempt.getAndIncrement() == 0) return FakeFcm.error(429, "QUOTA_EXCEEDED");
+      return FakeFcm.accept(call);
+    })) {
+      var throttle = new Throttle("test", 0, 1, 100, 3, Duration.ofMillis(1), Duration.ofMillis(5));
+      List<String> tokens = List.of("a", "b", "c");
+      List<SendResponse> responses = throttle.sendEach(tokens, subset -> Async.toCompletable(fcm.messaging.sendEachAsync(
+          subset.stream().map(t -> Message.builder().setToken(t).build()).toList()
+      ))).get(5, TimeUnit.SECONDS);
+      assertTrue(responses.stream().allMatch(SendResponse::isSuccessful));
+      assertEquals(4, fcm.calls("messages:send").size());
+      assertEquals(1L, throttle.stats().get("retried"));
+    }
+  }
+
+  @Test
+  void doesntRetryPermanentErrors() throws Exception {
+    try (var fcm = new FakeFcm(call -> FakeFcm.error(404, "UNREGISTERED"))) {
+      var throttle = new Throttle("test", 0, 1, 100, 3, Duration.ofMillis(1), Duration.ofMillis(5));
+      var sent = throttle.call(() -> Async.toCompletable(fcm.messaging.sendAsync(Message.builder().setToken("a").build())));
+      var failure = assertThrows(Exception.class, () -> sent.get(5, TimeUnit.SECONDS));
+      assertEquals(MessagingErrorCode.UNREGISTERED, ((com.google.firebase.messaging.FirebaseMessagingException) Async.unwrap(failure)).getMessagingErrorCode());
+      assertEquals(1, fcm.calls.size());
+    }
+  }
+
+  private static BatchResponse batch(int size) {
+    return new BatchResponse() {
+      @Override
+      public List<SendResponse> getResponses() {
+        return List.of();
+      }
+
+      @Override
+      public int getSuccessCount() {
+        return size;
+      }
+
+      @Override
+      public int getFailureCount() {
+        return 0;
+      }
+    };
+  }
+}
@@ -0,0 +1,211 @@
+package app.hypi.fn;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenResolverTest {
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  @Test
+  void cachesTokensPerCaller() {
+    var hypi = new FakeHypi(body -> json("{\"data\": {\"t0\": {\"fcmToken\": \"device-1\"}}}"));
+    var resolver = hypi.resolver();
+    assertEquals("device-1", resolver.resolve("caller-a", "app.hypi", "Device", "fcmToken", "d1").join());
+    assertEquals("device-1", resolver.resolve("caller-a", "app.hypi", "Device", "fcmToken", "d1").join());
+    assertEquals(1, hypi.requests.size());
+    //Another caller may not be allowed to read the object, it is looked up with its own Hypi token
+    assertEquals("device-1", resolver.resolve("caller-b", "app.hypi", "Device", "fcmToken", "d1").join());
+    assertEquals(2, hypi.requests.size());
+    assertEquals("caller-b", hypi.callers.get(1));
+  }
+
+  @Test
+  void cachesObjectsThatDontExist() {
+    var hypi = new FakeHypi(body -> json("{\"data\": {\"t0\": null}}"));
+    var resolver = hypi.resolver();
+    assertNull(resolver.resolve("caller", "app.hypi", "Device", "fcmToken", "d1").join());
+    assertNull(resolver.resolve("caller", "app.hypi", "Device", "fcmToken", "d1").join());
+    assertEquals(1, hypi.requests.size());
+  }
+
+  @Test
+  void doesntCacheGraphqlErrors() {
+    var hypi = new FakeHypi(body -> json("{\"data\": {\"t0\": null}, \"errors\": [{\"message\": \"denied\", \"path\": [\"t0\"]}]}"));
+    var resolver = hypi.resolver();
+    var failure = assertThrows(CompletionException.class, () -> resolver.resolve("caller", "app.hypi", "Device", "fcmToken", "d1").join());
+    assertTrue(failure.getCause().getMessage().contains("denied"));
+    assertThrows(CompletionException.class, () -> resolver.resolve("caller", "app.hypi", "Device", "fcmToken", "d1").join());
+    assertEquals(2, hypi.requests.size());
+  }
+
+  @Test
+  void anErrorForOneIdOnlyFailsThatId() {
+    var hypi = new FakeHypi(body -> json("{\"data\": {\"t0\": {\"fcmToken\": \"device-1\"}, \"t1\": null}, \"errors\": [{\"message\": \"denied\", \"path\": [\"t1\"]}]}"));
+    var fetched = TokenResolver.parseGet(hypi.respond.apply(null), List.of("d1", "d2"), "fcmToken");
+    assertEquals(Map.of("d1", "device-1"), fetched.tokens());
+    assertEquals(List.of("d2"), List.copyOf(fetched.failed().keySet()));
+  }
+
+  @Test
+  void doesntCacheResponsesWithoutData() {
+    var hypi = new FakeHypi(body -> json("{\"errors\": [{\"message\": \"Invalid token\"}]}"));
+    var resolver = hypi.resolver();
+    assertThrows(CompletionException.class, () -> resolver.resolve("caller", "app.hypi", "Device", "fcmToken", "d1").join());
+    assertThrows(CompletionException.class, () -> resolver.resolve("caller", "app.hypi", "Device", "fcmToken", "d1").join());
+    assertEquals(2, hypi.requests.size());
+  }
+
+  @Test
+  void invalidatingALocationDropsItForEveryCaller() {
+    var hypi = new FakeHypi(body -> json("{\"data\": {\"t0\": {\"fcmToken\": \"device-1\"}}}"));
+    var resolver = hypi.resolver();
+    resolver.resolve("caller-a", "app.hypi", "Device", "fcmToken", "d1").join();
+    resolver.resolve("caller-b", "app.hypi", "Device", "fcmToken", "d1").join();
+    assertTrue(resolver.invalidate("app.hypi", "Device", "fcmToken", "d1"));
+    resolver.resolve("caller-a", "app.hypi", "Device", "fcmToken", "d1").join();
+    resolver.resolve("caller-b", "app.hypi", "Device", "fcmToken", "d1").join();
+    assertEquals(4, hypi.requests.size());
+  }
+
+  @Test
+  void invalidatingATokenDropsEveryLookupThatFoundIt() {
+    var hypi = new FakeHypi(body -> json("{\"data\": {\"t0\": {\"fcmToken\": \"device-1\"}}}"));
+    var resolver = hypi.resolver();
+    resolver.resolve("caller-a", "app.hypi", "Device", "fcmToken", "d1").join();
+    resolver.resolve("caller-b", "app.hypi", "Device", "fcmToken", "d1").join();
+    resolver.resolve("caller-a", "app.hypi", "Phone", "fcmToken", "p1").join();
+    assertEquals(3, resolver.invalidateToken("device-1"));
+    assertEquals(0, resolver.invalidateToken("device-1"));
+    resolver.resolve("caller-a", "app.hypi", "Device", "fcmToken", "d1").join();
+    assertEquals(4, hypi.requests.size());
+  }
+
+  @Test
+  void aRefreshedLookupIsntInvalidatedByTheTokenItFoundBefore() {
+    List<String> found = new ArrayList<>(List.of("device-1", "device-2", "device-2"));
+    var hypi = new FakeHypi(body -> json("{\"data\": {\"t0\": {\"fcmToken\": \"" + found.remove(0) + "\"}}}"));
+    var resolver = new TokenResolver(hypi, 100, Duration.ZERO, Duration.ZERO);
+    assertEquals("device-1", resolver.resolve("caller-a", "app.hypi", "Device", "fcmToken", "d1").join());
+    assertEquals("device-2", resolver.resolve("caller-b", "app.hypi", "Device", "fcmToken", "d1").join());
+    //caller-a's lookup expired and now finds the new token too
+    assertEquals("device-2", resolver.resolve("caller-a", "app.hypi", "Device", "fcmToken", "d1").join());
+    assertEquals(0, resolver.invalidateToken("device-1"));
+    assertEquals(2, resolver.invalidateToken("device-2"));
+  }
+
+  @Test
+  void evictedLookupsArentInvalidatedAgain() {
+    var hypi = new FakeHypi(TokenResolverTest::tokenPerId);
+    var resolver = new TokenResolver(hypi, 1, Duration.ofMinutes(5), Duration.ofMinutes(1));
+    resolver.resolve("caller", "app.hypi", "Device", "fcmToken", "d1").join();
+    resolver.resolve("caller", "app.hypi", "Device", "fcmToken", "d2").join();
+    assertEquals(0, resolver.invalidateToken("token-d1"));
+    assertFalse(resolver.invalidate("app.hypi", "Device", "fcmToken", "d1"));
+    assertTrue(resolver.invalidate("app.hypi", "Device", "fcmToken", "d2"));
+    assertEquals(0, resolver.invalidateToken("token-d2"));
+  }
+
+  @Test
+  void idsArePassedAsVariables() {
+    var hypi = new FakeHypi(TokenResolverTest::tokenPerId);
+    String id = "d1\") { id } t9: get(type: Secret, id: \"s1";
+    assertEquals("token-" + id, hypi.resolver().resolve("caller", "app.hypi", "Device", "fcmToken", id).join());
+    ObjectNode request = hypi.requests.get(0);
+    assertFalse(request.path("query").asText().contains("Secret"));
+    assertEquals(id, request.path("variables").path("id0").asText());
+  }
+
+  @Test
+  void rejectsTypesAndFieldsThatArentGraphqlNames() {
+    var resolver = new FakeHypi(TokenResolverTest::tokenPerId).resolver();
+    assertThrows(IllegalArgumentException.class, () -> resolver.resolve("caller", "app.hypi", "Device { id }", "fcmToken", "d1"));
+    assertThrows(IllegalArgumentException.class, () -> resolver.resolve("caller", "app.hypi", "Device", "fcmToken }", "d1"));
+  }
+
+  @Test
+  void resolvesEveryPageOfALargeCall() {
+    var hypi = new FakeHypi(TokenResolverTest::tokenPerId);
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 1_000; i++) ids.add("d" + i);
+    Map<String, String> found = hypi.resolver().resolveAll("caller", "app.hypi", "Device", "fcmToken", ids).join();
+    assertEquals(ids, List.copyOf(found.keySet()));
+    assertEquals("token-d999", found.get("d999"));
+    //FCM_TOKEN_RESOLVE_PAGE_SIZE defaults to 100
+    assertEquals(10, hypi.requests.size());
+  }
+
+  @Test
+  void aLargeCallDoesntHoldUpOtherLookups() {
+    List<CompletableFuture<JsonNode>> stalled = new ArrayList<>();
+    var hypi = new FakeHypi(TokenResolverTest::tokenPerId) {
+      @Override
+      public synchronized CompletableFuture<JsonNode> post(String hypiToken, String instanceDomain, ObjectNode body) {
+        if (!hypiToken.equals("bulk")) return super.post(hypiToken, instanceDomain, body);
+        var response = new CompletableFuture<JsonNode>();
+        stalled.add(response);
+        return response;
+      }
+    };
+    var resolver = hypi.resolver();
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 1_000; i++) ids.add("d" + i);
+    var bulk = resolver.resolveAll("bulk", "app.hypi", "Device", "fcmToken", ids);
+    //FCM_TOKEN_RESOLVE_CONCURRENCY defaults to 4
+    assertEquals(4, stalled.size());
+    assertEquals("token-other", resolver.resolve("caller", "app.hypi", "Device", "fcmToken", "other").join());
+    assertFalse(bulk.isDone());
+  }
+
+  //Answers gets with token-<id> for every ID
+  static JsonNode tokenPerId(ObjectNode body) {
+    ObjectNode data = mapper.createObjectNode();
+    body.path("variables").fields().forEachRemaining(v -> data.putObject("t" + v.getKey().substring(2)).put("fcmToken", "token-" + v.getValue().asText()));
+    ObjectNode response = mapper.createObjectNode();
+    response.set("data", data);
+    return response;
+  }
+
+  static JsonNode json(String json) {
+    try {
+      return mapper.readTree(json);
+    } catch (Exception e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * Answers every request with {@code respond}, recording what was asked.
+   */
+  static class FakeHypi implements TokenResolver.Graphql {
+    final List<ObjectNode> requests = new ArrayList<>();
+    final List<String> callers = new ArrayList<>();
+    final Function<ObjectNode, JsonNode> respond;
+
+    FakeHypi(Function<ObjectNode, JsonNode> respond) {
+      this.respond = respond;
+    }
+
+    TokenResolver resolver() {
+      return new TokenResolver(this, 100, Duration.ofMinutes(5), Duration.ofMinutes(1));
+    }
+
+    @Override
+    public synchronized CompletableFuture<JsonNode> post(String hypiToken, String instanceDomain, ObjectNode body) {
+      requests.add(body);
+      callers.add(hypiToken);
+      return CompletableFuture.completedFuture(respond.apply(body));
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package app.hypi.fn;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TopicBatcherTest {
+  @Test
+  void mergesRequestsForTheSameTopicWithinTheWindow() throws Exception {
+    try (var fcm = new FakeFcm(FakeFcm::accept)) {
+      var batcher = new TopicBatcher(fcm.messaging, new Throttle("test"), 200);
+      var first = batcher.subscribe("news", List.of("a", "b"));
+      var second = batcher.subscribe("news", List.of("c"));
+      assertEquals(2, first.get(5, TimeUnit.SECONDS).getSuccessCount());
+      assertEquals(1, second.get(5, TimeUnit.SECONDS).getSuccessCount());
+      var calls = fcm.calls("batchAdd");
+      assertEquals(1, calls.size());
+      assertEquals(3, calls.get(0).body().path("registration_tokens").size());
+    }
+  }
+
+  @Test
+  void oneCallersBadTokenDoesntFailTheOthers() throws Exception {
+    try (var fcm = new FakeFcm(FakeFcm::accept)) {
+      var batcher = new TopicBatcher(fcm.messaging, new Throttle("test"), 200);
+      var good = batcher.subscribe("news", List.of("a", "b"));
+      var bad = batcher.subscribe("news", Arrays.asList("c", ""));
+      var missing = batcher.subscribe("news", Arrays.asList("d", null));
+      var failure = assertThrows(ExecutionException.class, () -> bad.get(5, TimeUnit.SECONDS));
+      assertInstanceOf(IllegalArgumentException.class, failure.getCause());
+      assertThrows(ExecutionException.class, () -> missing.get(5, TimeUnit.SECONDS));
+      assertEquals(2, good.get(5, TimeUnit.SECONDS).getSuccessCount());
+      assertEquals(List.of("a", "b"), tokens(fcm.calls("batchAdd").get(0)));
+    }
+  }
+
+  @Test
+  void splitsLargeRequestsAndMapsErrorsBackToEachCaller() throws Exception {
+    try (var fcm = new FakeFcm(call -> {
+      //Every token ending in 7 is rejected
+      var results = FakeFcm.mapper.createArrayNode();
+      call.body().path("registration_tokens").forEach(t -> {
+        if (t.asText().endsWith("7")) results.addObject().put("error", "INVALID_ARGUMENT");
+        else results.addObject();
+      });
+      return new FakeFcm.Reply(200, FakeFcm.mapper.createObjectNode().set("results", results).toString());
+    })) {
+      var batcher = new TopicBatcher(fcm.messaging, new Throttle("test"), 0);
+      List<String> tokens = new ArrayList<>();
+      for (int i = 0; i < 2_500; i++) tokens.add("t" + i);
+      var result = batcher.unsubscribe("news", tokens).get(5, TimeUnit.SECONDS);
+      assertEquals(3, fcm.calls("batchRemove").size());
+      assertEquals(250, result.getFailureCount());
+      assertEquals(7, result.getErrors().get(0).index());
+      assertEquals(2_497, result.getErrors().get(result.getErrors().size() - 1).index());
+    }
+  }
+
+  @Test
+  void emptyRequestsAreNotSent() throws Exception {
+    try (var fcm = new FakeFcm(FakeFcm::accept)) {
+      var batcher = new TopicBatcher(fcm.messaging, new Throttle("test"), 0);
+      CompletableFuture<TopicResult> result = batcher.subscribe("news", List.of());
+      assertEquals(0, result.get(5, TimeUnit.SECONDS).getSuccessCount());
+      assertTrue(fcm.calls.isEmpty());
+    }
+  }
+
+  private static List<String> tokens(FakeFcm.Call call) {
+    List<String> tokens = new ArrayList<>();
+    call.body().path("registration_tokens").forEach(t -> tokens.add(t.asText()));
+    return tokens;
+  }
+}